@@ -17,6 +17,10 @@ public final class Utils {
         return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
     }
 
+    public static String formatDuration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
     public static DateTimeFormatter formatDateTime() {
         return DateTimeFormatter.ofPattern(AppConstants.DATETIME_FORMAT);
     }
@@ -1,11 +1,16 @@
 package com.backup.constants;
 
+import java.util.Set;
+
 public final class AppConstants {
     
     // Network constants
     public static final int DEFAULT_SMB_PORT = 445;
     public static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
     public static final int DEFAULT_RESPONSE_TIMEOUT = 30000;
+    public static final int DEFAULT_SMB_SESSIONS = 4;
+    public static final int SMB_KEEPALIVE_SECONDS = 60;
+    public static final int MAX_WATCHED_CHANGES = 100_000;
     
     // UI constants
     public static final String DEFAULT_CONFIG_FILE = "backup-config.json";
@@ -18,6 +23,33 @@ public final class AppConstants {
     // SMB Protocol
     public static final String SMB_URL_FORMAT = "smb://%s:%d/%s/";
     
+    // Backup engine
+    public static final int DEFAULT_COPY_THREADS = 4;
+    public static final int DEFAULT_MAX_COPY_THREADS = 16;
+    public static final int DEFAULT_MAX_CONCURRENT_LISTINGS = 8;
+    public static final int DEFAULT_FULL_RESCAN_RUNS = 10;
+    public static final long DEFAULT_LARGE_FILE_THRESHOLD = 256L * 1024 * 1024; // 256MB
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024; // 16MB
+    public static final int DEFAULT_SEGMENT_STREAMS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024; // 1MB
+    public static final int MIN_BUFFER_SIZE = 64 * 1024; // 64KB
+    public static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+    public static final int DEFAULT_BUFFER_COUNT = 32;
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+    public static final long DEFAULT_PACK_FILE_THRESHOLD = 64 * 1024; // 64KB
+    public static final long DEFAULT_DELTA_THRESHOLD = 1024L * 1024 * 1024; // 1GB
+    public static final int DEFAULT_CATALOG_RESCAN_DAYS = 7;
+    public static final long DEFAULT_MAX_PACK_SIZE = 1024L * 1024 * 1024; // 1GB, below the FAT32 file limit
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 64L * 1024 * 1024; // 64MB
+    public static final long DEFAULT_SYNC_BATCH_BYTES = 256L * 1024 * 1024; // 256MB
+    public static final int DEFAULT_SYNC_BATCH_FILES = 1000;
+    public static final int DEFAULT_TRASH_RETENTION_DAYS = 30;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 3;
+    public static final int DEFAULT_COMPRESSION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final Set<String> INCOMPRESSIBLE_EXTENSIONS = Set.of(
+            "7z", "avi", "bz2", "docx", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "m4a", "mkv",
+            "mov", "mp3", "mp4", "ogg", "png", "pptx", "rar", "webm", "webp", "xlsx", "xz", "zip", "zst");
+
     // Date format
     public static final String DATETIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
     
@@ -3,9 +3,16 @@ package com.backup.model;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 @NoArgsConstructor
 public class Analysis {
     private long filesToBackup = 0;
     private long totalSizeToBackup = 0;
+    // Predicted from earlier runs, -1 when there are none
+    private long estimatedSeconds = -1;
+    // Directories to create and files to copy, in walk order
+    private List<PlannedCopy> plannedCopies = new ArrayList<>();
 }
@@ -1,5 +1,6 @@
 package com.backup.model;
 
+import com.backup.constants.AppConstants;
 import lombok.Data;
 
 import java.nio.file.Path;
@@ -10,10 +11,49 @@ import java.util.List;
 public class Configuration {
     private String nasHost;
     private int nasPort = 445;
+    private int smbSessions = AppConstants.DEFAULT_SMB_SESSIONS;
     private String nasUsername;
     private String nasPassword;
     private String nasShareName;
     private String nasBackupPath;
     private Path lastUsedExternalDrive;
+    private int copyThreads = AppConstants.DEFAULT_COPY_THREADS;
+    private boolean adaptiveConcurrency = true;
+    private int maxCopyThreads = AppConstants.DEFAULT_MAX_COPY_THREADS;
+    private int maxConcurrentListings = AppConstants.DEFAULT_MAX_CONCURRENT_LISTINGS;
+    private boolean directoryStamps = false;
+    private int fullRescanRuns = AppConstants.DEFAULT_FULL_RESCAN_RUNS;
+    private boolean watchChanges = false;
+    private long largeFileThreshold = AppConstants.DEFAULT_LARGE_FILE_THRESHOLD;
+    private int segmentSize = AppConstants.DEFAULT_SEGMENT_SIZE;
+    private int segmentStreams = AppConstants.DEFAULT_SEGMENT_STREAMS;
+    private int bufferSize = AppConstants.DEFAULT_BUFFER_SIZE;
+    private int bufferCount = AppConstants.DEFAULT_BUFFER_COUNT;
+    private int pipelineDepth = AppConstants.DEFAULT_PIPELINE_DEPTH;
+    private boolean streamingBackup = false;
+    private boolean deltaTransfer = false;
+    private long deltaThreshold = AppConstants.DEFAULT_DELTA_THRESHOLD;
+    private boolean useDestinationCatalog = false;
+    private int catalogRescanDays = AppConstants.DEFAULT_CATALOG_RESCAN_DAYS;
+    private StorageLayout storageLayout = StorageLayout.PLAIN;
+    private long packFileThreshold = AppConstants.DEFAULT_PACK_FILE_THRESHOLD;
+    private long maxPackSize = AppConstants.DEFAULT_MAX_PACK_SIZE;
+    private boolean resumableBackups = true;
+    private long checkpointInterval = AppConstants.DEFAULT_CHECKPOINT_INTERVAL;
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.BATCHED;
+    private long syncBatchBytes = AppConstants.DEFAULT_SYNC_BATCH_BYTES;
+    private int syncBatchFiles = AppConstants.DEFAULT_SYNC_BATCH_FILES;
+    private boolean syncDirectories = true;
+    private boolean compression = false;
+    private int compressionLevel = AppConstants.DEFAULT_COMPRESSION_LEVEL;
+    private int compressionThreads = AppConstants.DEFAULT_COMPRESSION_THREADS;
+    private boolean checksumManifest = false;
+    private boolean checksumSha256 = false;
+    private boolean snapshots = false;
+    private boolean mirror = false;
+    private boolean mirrorToTrash = true;
+    private int trashRetentionDays = AppConstants.DEFAULT_TRASH_RETENTION_DAYS;
+    private RateLimits rateLimits = new RateLimits();
+    private List<RateProfile> rateProfiles = new ArrayList<>();
     private List<History> histories = new ArrayList<>();
 }
@@ -0,0 +1,10 @@
+package com.backup.model;
+
+public enum DurabilityPolicy {
+    /** Files are renamed into place and left to the operating system to flush. */
+    NONE,
+    /** Each file is synced to the drive before it is renamed into place. */
+    PER_FILE,
+    /** Committed files are synced together once enough bytes or files have accumulated. */
+    BATCHED
+}
@@ -17,6 +17,10 @@ public class History {
     private long totalSize;
     private boolean successful;
     private String errorMessage;
+    // The whole run, as shown in the history
+    private long durationMillis;
+    // From the first planned copy to the end of the run, which durations are predicted for
+    private long copyMillis;
 
     public History(LocalDateTime timestamp, String sourcePath, String destinationPath,
                    long filesCopied, long totalSize, boolean successful) {
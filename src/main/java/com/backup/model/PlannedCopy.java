@@ -0,0 +1,19 @@
+package com.backup.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.file.Path;
+
+@Data
+@AllArgsConstructor
+public class PlannedCopy {
+    private FileInfo source;
+    private Path destination;
+    // Unchanged file in the previous snapshot to hard link instead of copying
+    private Path linkTarget;
+
+    public PlannedCopy(FileInfo source, Path destination) {
+        this(source, destination, null);
+    }
+}
@@ -1,13 +1,23 @@
 package com.backup.model;
 
-import lombok.Data;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 
-@Data
+/**
+ * Immutable snapshot of a running backup. Rates are smoothed over recent samples and
+ * {@code etaSeconds} is -1 until there is a rate to estimate from.
+ */
+@Getter
+@AllArgsConstructor
 public class Progress {
-    public long totalFiles;
-    public long totalBytes;
-    public long filesProcessed;
-    public long bytesProcessed;
+    public final long totalFiles;
+    public final long totalBytes;
+    public final long filesProcessed;
+    public final long bytesProcessed;
+    public final double bytesPerSecond;
+    public final double filesPerSecond;
+    public final long etaSeconds;
+    public final String currentFile;
 
     public double getFileProgress() {
         return totalFiles > 0 ? (double) filesProcessed / totalFiles : 0.0;
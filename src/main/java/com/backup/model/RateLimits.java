@@ -0,0 +1,18 @@
+package com.backup.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Limits on backup traffic. A limit of zero means unlimited.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RateLimits {
+    private long readBytesPerSecond;
+    private int readOpsPerSecond;
+    private long writeBytesPerSecond;
+    private int writeOpsPerSecond;
+}
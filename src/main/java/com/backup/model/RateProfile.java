@@ -0,0 +1,29 @@
+package com.backup.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalTime;
+
+/**
+ * Rate limits that apply during a time of day. A window whose end is before its start runs past midnight.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RateProfile {
+    private LocalTime start;
+    private LocalTime end;
+    private RateLimits limits;
+
+    public boolean isActiveAt(LocalTime time) {
+        if (start == null || end == null) {
+            return false;
+        }
+        if (start.isBefore(end)) {
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+        return !time.isBefore(start) || time.isBefore(end);
+    }
+}
@@ -0,0 +1,10 @@
+package com.backup.model;
+
+public enum StorageLayout {
+    /** Every file is written to its own path on the destination. */
+    PLAIN,
+    /** Files below the packing threshold are appended to shared pack files. */
+    PACKED,
+    /** Each distinct content is stored once by hash; backup paths link or map to it. */
+    DEDUPLICATED
+}
@@ -1,5 +1,6 @@
 package com.backup.service;
 
+import com.backup.constants.AppConstants;
 import com.backup.model.Analysis;
 import com.backup.model.FileInfo;
 import org.slf4j.Logger;
@@ -9,42 +10,55 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BackupAnalysisService {
     
     private static final Logger logger = LoggerFactory.getLogger(BackupAnalysisService.class);
     
     private final NetworkFileService networkFileService;
+    private final int maxListings;
     
     public BackupAnalysisService(NetworkFileService networkFileService) {
+        this(networkFileService, AppConstants.DEFAULT_MAX_CONCURRENT_LISTINGS);
+    }
+
+    public BackupAnalysisService(NetworkFileService networkFileService, int maxListings) {
         this.networkFileService = networkFileService;
+        this.maxListings = maxListings;
     }
     
     public Analysis analyzeBackup(String sourceUrl, Path destinationPath) throws IOException {
+        LongAdder files = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        new TreeWalker(networkFileService, maxListings).walk(sourceUrl, destinationPath,
+                (sourcePath, destinationDir, entries, descend) ->
+                        analyzeDirectory(entries, destinationDir, files, bytes, descend));
+
         Analysis analysis = new Analysis();
-        analyzeDirectory(sourceUrl, destinationPath, analysis);
+        analysis.setFilesToBackup(files.sum());
+        analysis.setTotalSizeToBackup(bytes.sum());
 
         logger.info("Backup analysis: {} files to backup, {} bytes total",
                 analysis.getFilesToBackup(), analysis.getTotalSizeToBackup());
 
         return analysis;
     }
-    
-    private void analyzeDirectory(String sourcePath, Path destinationPath, Analysis analysis) throws IOException {
-        List<FileInfo> files = networkFileService.listFiles(sourcePath);
 
-        for (FileInfo file : files) {
+    private void analyzeDirectory(List<FileInfo> entries, Path destinationPath, LongAdder files, LongAdder bytes,
+                                  TreeWalker.Descend<Path> descend) {
+        for (FileInfo file : entries) {
             if (file.isDirectory()) {
                 Path destDir = destinationPath.resolve(file.getName());
                 if (!Files.exists(destDir)) {
-                    analysis.setFilesToBackup(analysis.getFilesToBackup() + 1);
+                    files.increment();
                 }
-                analyzeDirectory(file.getPath(), destDir, analysis);
+                descend.into(file.getPath(), destDir);
             } else {
                 Path destFile = destinationPath.resolve(file.getName());
                 if (shouldCopyFile(file, destFile)) {
-                    analysis.setFilesToBackup(analysis.getFilesToBackup() + 1);
-                    analysis.setTotalSizeToBackup(analysis.getTotalSizeToBackup() + file.getSize());
+                    files.increment();
+                    bytes.add(file.getSize());
                 }
             }
         }
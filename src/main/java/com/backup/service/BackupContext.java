@@ -0,0 +1,133 @@
+package com.backup.service;
+
+import com.backup.model.Configuration;
+import com.backup.model.FileInfo;
+import com.backup.model.StorageLayout;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State shared by the analysis and copy phases of a single backup run.
+ */
+class BackupContext implements AutoCloseable {
+
+    final Configuration config;
+    final Path destinationRoot;
+    final ProgressPublisher progress;
+    final PackStore packStore;
+    final DedupStore dedupStore;
+    final DestinationCatalog catalog;
+    final CheckpointJournal journal;
+    final ChecksumManifest checksums;
+    final SnapshotGenerations snapshots;
+    final MirrorCleaner mirror;
+    final DirectoryStamps directories;
+    final DestinationSync sync;
+
+    CopyEngine engine;
+    FileCopier copier;
+
+    // The stores opened, in order, to be closed in reverse
+    private final List<AutoCloseable> stores = new ArrayList<>();
+
+    /**
+     * @param snapshots the snapshot generations, whose current one is the destination root, or {@code null}
+     */
+    BackupContext(Configuration config, NetworkFileService networkService, String sourceUrl, Path destinationRoot,
+                  ProgressPublisher progress, SnapshotGenerations snapshots) throws IOException {
+        this.config = config;
+        this.destinationRoot = destinationRoot;
+        this.progress = progress;
+        this.snapshots = snapshots;
+        this.sync = new DestinationSync(config);
+        try {
+            this.packStore = config.getStorageLayout() == StorageLayout.PACKED
+                    ? opened(new PackStore(destinationRoot, config.getMaxPackSize(), config.getDurabilityPolicy()))
+                    : null;
+            if (packStore != null) {
+                sync.include(packStore);
+            }
+            this.dedupStore = config.getStorageLayout() == StorageLayout.DEDUPLICATED
+                    ? opened(new DedupStore(destinationRoot))
+                    : null;
+            this.catalog = config.isUseDestinationCatalog()
+                    ? opened(new DestinationCatalog(destinationRoot, Duration.ofDays(config.getCatalogRescanDays())))
+                    : null;
+            this.journal = config.isResumableBackups()
+                    ? opened(new CheckpointJournal(destinationRoot, sourceUrl))
+                    : null;
+            this.checksums = config.isChecksumManifest()
+                    ? opened(new ChecksumManifest(destinationRoot))
+                    : null;
+            // A snapshot only ever holds what the source has
+            this.mirror = config.isMirror() && snapshots == null
+                    ? new MirrorCleaner(destinationRoot, config.isMirrorToTrash() ? config.getTrashRetentionDays() : -1, catalog)
+                    : null;
+            // A snapshot links every file, so each generation needs every listing. A catalog being
+            // rebuilt needs every file confirmed.
+            this.directories = config.isDirectoryStamps() && snapshots == null
+                    ? new DirectoryStamps(destinationRoot, networkService,
+                            sourceUrl + "|" + config.getStorageLayout() + "|" + config.isCompression(),
+                            config.getFullRescanRuns(), catalog == null || catalog.isTrusted())
+                    : null;
+        } catch (IOException | RuntimeException e) {
+            // Nothing will close the stores already opened
+            try {
+                closeStores();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+
+    private <T extends AutoCloseable> T opened(T store) {
+        stores.add(store);
+        return store;
+    }
+
+    String relativePath(Path destination) {
+        return destinationRoot.relativize(destination).toString().replace('\\', '/');
+    }
+
+    boolean isPacked(FileInfo file) {
+        return packStore != null && file.getSize() <= config.getPackFileThreshold();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // Even a failed run keeps, and journals, the files it finished
+            sync.flush();
+        } finally {
+            closeStores();
+        }
+    }
+
+    /**
+     * Closes every store, even when closing an earlier one fails, and throws the first failure
+     * with the others suppressed.
+     */
+    private void closeStores() throws IOException {
+        IOException failure = null;
+        for (AutoCloseable store : stores.reversed()) {
+            try {
+                store.close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e instanceof IOException io ? io : new IOException("Could not close " + store, e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        stores.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -7,17 +7,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 import static com.backup.Utils.formatBytes;
+import static com.backup.Utils.formatDuration;
 
 public class BackupService {
 
@@ -26,6 +31,8 @@ public class BackupService {
     private final NetworkFileService networkService;
     private final ExecutorService executor;
     private Task<Void> currentBackupTask;
+    // Used from the backup thread only, and at shutdown
+    private ChangeWatcher changeWatcher;
 
     public BackupService() {
         this.networkService = new NetworkFileService();
@@ -56,41 +63,119 @@ public class BackupService {
         return new Task<>() {
             @Override
             protected Void call() {
+                long started = System.currentTimeMillis();
+                networkService.getCallStats().reset();
                 try {
-                    // Update status
-                    Platform.runLater(() -> statusCallback.accept("Connecting to NAS..."));
+                    networkService.getRateGovernor().configure(config.getRateLimits(), config.getRateProfiles());
 
-                    // Connect to NAS
-                    String shareUrl = String.format("smb://%s:%d/%s/",
-                            config.getNasHost(), config.getNasPort(), config.getNasShareName());
+                    String sourceUrl;
 
-                    networkService.connect(config.getNasHost(), config.getNasPort(),
-                            config.getNasUsername(), config.getNasPassword(),
-                            config.getNasShareName());
+                    if (config.getNasHost() == null || config.getNasHost().isBlank()) {
+                        // Source is a share that is already mounted locally
+                        sourceUrl = config.getNasBackupPath();
+                    } else {
+                        // Update status
+                        Platform.runLater(() -> statusCallback.accept("Connecting to NAS..."));
 
-                    // Calculate backup requirements
-                    Platform.runLater(() -> statusCallback.accept("Analyzing files..."));
+                        // Connect to NAS
+                        String shareUrl = String.format("smb://%s:%d/%s/",
+                                config.getNasHost(), config.getNasPort(), config.getNasShareName());
 
-                    String sourceUrl = shareUrl + config.getNasBackupPath();
-                    Analysis analysis = analyzeBackup(sourceUrl, destinationPath);
+                        networkService.connect(config.getNasHost(), config.getNasPort(),
+                                config.getNasUsername(), config.getNasPassword(),
+                                config.getNasShareName(), config.getSmbSessions());
 
-                    // Check available space
-                    long availableSpace = Files.getFileStore(destinationPath).getUsableSpace();
-                    if (availableSpace < analysis.getTotalSizeToBackup()) {
-                        throw new IOException("Insufficient disk space. Need " +
-                                formatBytes(analysis.getTotalSizeToBackup()) + ", available " +
-                                formatBytes(availableSpace));
+                        sourceUrl = shareUrl + config.getNasBackupPath();
                     }
 
-                    // Start actual backup
-                    Platform.runLater(() -> statusCallback.accept("Starting backup..."));
+                    ChangeWatcher.Changes changes = takeChanges(config, sourceUrl, destinationPath);
+                    Analysis analysis;
+
+                    SnapshotGenerations snapshots = null;
+                    Path backupRoot = destinationPath;
+                    if (config.isSnapshots()) {
+                        if (config.getStorageLayout() != StorageLayout.PLAIN) {
+                            throw new IOException("Snapshots need the plain storage layout");
+                        }
+                        snapshots = new SnapshotGenerations(destinationPath, config.isChecksumManifest());
+                        backupRoot = snapshots.getCurrent();
+                    }
+
+                    long copyMillis;
+                    try (ProgressPublisher progress = new ProgressPublisher(progressCallback, statusCallback,
+                            networkService.getReadMonitor()::getBytes);
+                         BackupContext context = new BackupContext(config, networkService, sourceUrl, backupRoot,
+                                 progress, snapshots)) {
+                        DurationPredictor predictor = DurationPredictor.fit(config.getHistories(),
+                                sourceUrl, destinationPath.toString());
+                        if (predictor != null) {
+                            logger.info("Duration model from earlier runs: {}", predictor);
+                            progress.setPredictor(predictor);
+                        }
+                        long availableSpace = Files.getFileStore(destinationPath).getUsableSpace();
+
+                        // Snapshots link every file and mirrors remove files, so both need the walk,
+                        // as does a catalog being rebuilt
+                        boolean fromChanges = changes != null && changes.complete() && snapshots == null
+                                && context.mirror == null && (context.catalog == null || context.catalog.isTrusted());
+
+                        if (config.isStreamingBackup() && !fromChanges) {
+                            Platform.runLater(() -> statusCallback.accept("Analyzing and copying files..."));
+
+                            analysis = performStreamingBackup(context, sourceUrl, availableSpace);
+                        } else {
+                            // Calculate backup requirements
+                            Platform.runLater(() -> statusCallback.accept(
+                                    fromChanges ? "Analyzing changed files..." : "Analyzing files..."));
+
+                            analysis = fromChanges
+                                    ? analyzeChanges(context, sourceUrl, changes)
+                                    : analyzeBackup(context, sourceUrl);
+                            if (predictor != null) {
+                                analysis.setEstimatedSeconds(predictor.predictSeconds(
+                                        analysis.getFilesToBackup(), analysis.getTotalSizeToBackup()));
+                            }
+
+                            // Check available space
+                            if (availableSpace < analysis.getTotalSizeToBackup()) {
+                                throw insufficientSpace(analysis.getTotalSizeToBackup(), availableSpace);
+                            }
+
+                            // Start actual backup
+                            String estimate = analysis.getEstimatedSeconds() >= 0
+                                    ? " (about " + formatDuration(analysis.getEstimatedSeconds()) + ")"
+                                    : "";
+                            Platform.runLater(() -> statusCallback.accept("Starting backup" + estimate + "..."));
+
+                            performBackup(context, analysis);
+                        }
+
+                        if (context.mirror != null) {
+                            context.mirror.flush();
+                        }
+                        if (context.catalog != null && !fromChanges) {
+                            context.catalog.markScanComplete();
+                        }
+                        if (context.directories != null && !fromChanges) {
+                            context.directories.save();
+                        }
+                        context.sync.flush();
+                        if (context.journal != null) {
+                            context.journal.finish();
+                        }
+                        copyMillis = progress.copyMillis();
+                    }
 
-                    performBackup(sourceUrl, destinationPath, analysis, progressCallback, statusCallback);
+                    if (snapshots != null) {
+                        snapshots.complete();
+                    }
 
                     // Record successful backup
                     History history = new History(
                             LocalDateTime.now(), sourceUrl, destinationPath.toString(),
                             analysis.getFilesToBackup(), analysis.getTotalSizeToBackup(), true);
+                    history.setDurationMillis(System.currentTimeMillis() - started);
+                    history.setCopyMillis(copyMillis);
 
                     config.getHistories().add(history);
 
@@ -101,12 +186,17 @@ public class BackupService {
 
                 } catch (Exception e) {
                     logger.error("Backup failed", e);
+                    if (changeWatcher != null) {
+                        // The changes taken may not all be backed up
+                        changeWatcher.invalidate();
+                    }
 
                     // Record failed backup
                     History history = new History(
                             LocalDateTime.now(), config.getNasBackupPath(), destinationPath.toString(),
                             0, 0, false);
                     history.setErrorMessage(e.getMessage());
+                    history.setDurationMillis(System.currentTimeMillis() - started);
 
                     config.getHistories().add(history);
 
@@ -116,14 +206,40 @@ public class BackupService {
                     });
                 }
 
+                logger.info("SMB calls: {}", networkService.getCallStats());
                 return null;
             }
         };
     }
 
-    private Analysis analyzeBackup(String sourceUrl, Path destinationPath) throws IOException {
+    @FunctionalInterface
+    private interface PlanSink {
+        void accept(PlannedCopy entry) throws IOException;
+    }
+
+    /**
+     * Entries and bytes planned so far, counted from many walker threads at once.
+     */
+    private static final class PlanTotals {
+        final LongAdder entries = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        void add(long size) {
+            entries.increment();
+            bytes.add(size);
+        }
+
+        void copyTo(Analysis analysis) {
+            analysis.setFilesToBackup(entries.sum());
+            analysis.setTotalSizeToBackup(bytes.sum());
+        }
+    }
+
+    private Analysis analyzeBackup(BackupContext context, String sourceUrl) throws IOException {
         Analysis analysis = new Analysis();
-        analyzeDirectory(sourceUrl, destinationPath, analysis);
+        PlanTotals totals = new PlanTotals();
+        walk(context, sourceUrl, totals, Collections.synchronizedList(analysis.getPlannedCopies())::add);
+        totals.copyTo(analysis);
 
         logger.info("Backup analysis: {} files to backup, {} bytes total",
                 analysis.getFilesToBackup(), analysis.getTotalSizeToBackup());
@@ -131,42 +247,256 @@ public class BackupService {
         return analysis;
     }
 
-    private void analyzeDirectory(String sourcePath, Path destinationPath, Analysis analysis) throws IOException {
-        List<FileInfo> files = networkService.listFiles(sourcePath);
+    /**
+     * Takes the changes watched since the previous backup, starting the watch when the source has none.
+     *
+     * @return the changes, or {@code null} when changes are not watched
+     */
+    private ChangeWatcher.Changes takeChanges(Configuration config, String sourceUrl, Path destinationPath) {
+        if (!config.isWatchChanges() || NetworkFileService.isLocalPath(sourceUrl)) {
+            stopWatching();
+            return null;
+        }
+
+        // Directory URLs need their trailing slash
+        String watchUrl = sourceUrl.endsWith("/") ? sourceUrl : sourceUrl + "/";
+        if (changeWatcher == null || !changeWatcher.isWatching(watchUrl)) {
+            stopWatching();
+            try {
+                changeWatcher = networkService.watch(watchUrl);
+            } catch (IOException e) {
+                logger.warn("Could not watch {} for changes, walking the share", sourceUrl, e);
+                return null;
+            }
+        }
+        return changeWatcher.drain(destinationPath.toAbsolutePath().normalize());
+    }
+
+    private void stopWatching() {
+        if (changeWatcher != null) {
+            changeWatcher.close();
+            changeWatcher = null;
+        }
+    }
+
+    /**
+     * Plans the paths a change watch reported instead of walking the source. A directory that
+     * appeared is walked whole, covering any paths reported inside it.
+     * <p>
+     * The reported paths are the roots of a single walk whose lister looks each one up on its own,
+     * so the lookups run in parallel over the pooled sessions; a directory that appeared is then
+     * listed under its URL with the trailing slash and walked like any other.
+     */
+    private Analysis analyzeChanges(BackupContext context, String sourceUrl, ChangeWatcher.Changes changes)
+            throws IOException {
+        Analysis analysis = new Analysis();
+        PlanTotals totals = new PlanTotals();
+        PlanSink sink = Collections.synchronizedList(analysis.getPlannedCopies())::add;
+        String base = sourceUrl.endsWith("/") ? sourceUrl : sourceUrl + "/";
+        Set<Path> parents = new HashSet<>();
+
+        // Whatever is under an added path is walked with it, if it is a directory, or gone
+        Set<String> addedDirectories = new HashSet<>();
+        changes.added().forEach(path -> addedDirectories.add(path + "/"));
+        Map<String, Path> roots = new HashMap<>();
+        for (String path : changes.changed()) {
+            if (!isUnder(path, addedDirectories)) {
+                roots.put(base + path, context.destinationRoot.resolve(path));
+            }
+        }
+
+        TreeWalker.Lister lister = path -> {
+            if (path.endsWith("/")) {
+                return networkService.listFiles(path);
+            }
+            FileInfo file = networkService.findFileInfo(path);
+            // Removed again, or renamed away
+            return file != null ? List.of(file) : List.of();
+        };
+        new TreeWalker(lister, context.config.getMaxConcurrentListings()).walk(roots,
+                (sourcePath, destination, files, descend) -> {
+                    if (sourcePath.endsWith("/")) {
+                        analyzeDirectory(context, destination, files, totals, sink, descend, false);
+                    } else if (!files.isEmpty()) {
+                        planChange(context, sourcePath, sourcePath.substring(base.length()), files.getFirst(),
+                                destination, changes, totals, sink, parents, descend);
+                    }
+                });
+        totals.copyTo(analysis);
+
+        logger.info("Backup analysis from {} watched changes: {} files to backup, {} bytes total",
+                changes.changed().size(), analysis.getFilesToBackup(), analysis.getTotalSizeToBackup());
+
+        return analysis;
+    }
+
+    /**
+     * Plans one reported path, found at {@code sourceUrl} as {@code file}.
+     */
+    private void planChange(BackupContext context, String sourceUrl, String path, FileInfo file, Path destination,
+                            ChangeWatcher.Changes changes, PlanTotals totals, PlanSink sink, Set<Path> parents,
+                            TreeWalker.Descend<Path> descend) throws IOException {
+        if (file.isDirectory()) {
+            if (!changes.added().contains(path)) {
+                // Only its entries changed, and those are reported themselves
+                return;
+            }
+            planParent(destination, totals, sink, parents);
+            if (!Files.exists(destination)) {
+                totals.add(0);
+                sink.accept(new PlannedCopy(file, destination));
+            }
+            descend.into(sourceUrl + "/", destination);
+        } else if (shouldCopyFile(context, file, destination)) {
+            planParent(destination, totals, sink, parents);
+            totals.add(file.getSize());
+            sink.accept(new PlannedCopy(file, destination));
+        }
+    }
+
+    private static boolean isUnder(String path, Set<String> directories) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            if (directories.contains(path.substring(0, slash + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plans the parent directory of a changed path when the destination lacks it. Changes are
+     * planned concurrently, so the lock holds back siblings until the parent is planned first.
+     */
+    private static void planParent(Path destination, PlanTotals totals, PlanSink sink, Set<Path> planned)
+            throws IOException {
+        Path parent = destination.getParent();
+        synchronized (planned) {
+            if (planned.add(parent) && !Files.exists(parent)) {
+                FileInfo directory = new FileInfo();
+                directory.setName(parent.getFileName().toString());
+                directory.setDirectory(true);
+                totals.add(0);
+                sink.accept(new PlannedCopy(directory, parent));
+            }
+        }
+    }
+
+    private void walk(BackupContext context, String sourceUrl, PlanTotals totals, PlanSink sink) throws IOException {
+        TreeWalker.Lister lister = context.directories != null ? context.directories::list : networkService::listFiles;
+        new TreeWalker(lister, context.config.getMaxConcurrentListings()).walk(sourceUrl,
+                context.destinationRoot, (sourcePath, destinationPath, files, descend) ->
+                        analyzeDirectory(context, destinationPath, files, totals, sink, descend,
+                                context.directories != null && context.directories.isReused(sourcePath)));
+    }
+
+    /**
+     * Plans one directory's entries. A subdirectory's own entry is planned before it is walked,
+     * so it is created before anything inside it.
+     *
+     * @param unchanged whether the directory is unchanged since the last run, and {@code files}
+     *                  only holds its subdirectories
+     */
+    private void analyzeDirectory(BackupContext context, Path destinationPath, List<FileInfo> files,
+                                  PlanTotals totals, PlanSink sink, TreeWalker.Descend<Path> descend,
+                                  boolean unchanged) throws IOException {
+        if (context.mirror != null && !unchanged) {
+            context.mirror.reconcile(destinationPath, files);
+        }
 
         for (FileInfo file : files) {
             if (file.isDirectory()) {
                 // Create directory if it doesn't exist
                 Path destDir = destinationPath.resolve(file.getName());
                 if (!Files.exists(destDir)) {
-                    analysis.setFilesToBackup(analysis.getFilesToBackup() + 1);
+                    totals.add(0);
+                    sink.accept(new PlannedCopy(file, destDir));
                 }
 
-                // Recursively analyze subdirectory
-                analyzeDirectory(file.getPath(), destDir, analysis);
+                descend.into(file.getPath(), destDir);
             } else {
                 // Check if file needs to be copied
                 Path destFile = destinationPath.resolve(file.getName());
-
-                if (shouldCopyFile(file, destFile)) {
-                    analysis.setFilesToBackup(analysis.getFilesToBackup() + 1);
-                    analysis.setTotalSizeToBackup(analysis.getFilesToBackup() + file.getSize());
+                Path linkTarget = context.snapshots != null
+                        ? context.snapshots.unchanged(context.relativePath(destFile), file.getSize(),
+                                file.getLastModified(), context.config.isCompression())
+                        : null;
+
+                if (linkTarget != null) {
+                    totals.add(0);
+                    sink.accept(new PlannedCopy(file, destFile, linkTarget));
+                } else if (shouldCopyFile(context, file, destFile)) {
+                    totals.add(file.getSize());
+                    sink.accept(new PlannedCopy(file, destFile));
                 }
             }
         }
     }
 
-    private boolean shouldCopyFile(FileInfo sourceFile, Path destinationFile) {
-        if (!Files.exists(destinationFile)) {
+    private boolean shouldCopyFile(BackupContext context, FileInfo sourceFile, Path destinationFile) {
+        CheckpointJournal journal = context.journal;
+        if (journal != null && !context.isPacked(sourceFile)) {
+            String relativePath = context.relativePath(destinationFile);
+            if (journal.isCompleted(relativePath, sourceFile)) {
+                // Copied by the interrupted run; its catalog entry may not have been saved
+                if (context.catalog != null) {
+                    try {
+                        context.catalog.record(relativePath, sourceFile);
+                    } catch (IOException e) {
+                        logger.warn("Could not update destination catalog for {}", relativePath, e);
+                    }
+                }
+                return false;
+            }
+            if (journal.isPartial(relativePath)) {
+                return true;
+            }
+        }
+
+        if (context.isPacked(sourceFile)) {
+            return !context.packStore.isCurrent(context.relativePath(destinationFile), sourceFile);
+        }
+
+        if (context.dedupStore != null) {
+            DedupStore.ManifestEntry entry = context.dedupStore.manifestEntry(context.relativePath(destinationFile));
+            if (entry != null) {
+                // A link deleted from the drive since needs its content placed again
+                if (entry.linked() && !Files.exists(destinationFile)) {
+                    return true;
+                }
+                return sourceFile.getSize() != entry.size() || sourceFile.getLastModified() > entry.lastModified();
+            }
+        }
+
+        DestinationCatalog catalog = context.catalog;
+        if (catalog != null && catalog.isTrusted()) {
+            return !catalog.isCurrent(context.relativePath(destinationFile), sourceFile);
+        }
+
+        Path compressedFile = context.config.isCompression() ? FileCopier.compressedPath(destinationFile) : null;
+        boolean compressed = compressedFile != null && Files.exists(compressedFile);
+
+        if (!compressed && !Files.exists(destinationFile)) {
             return true; // File doesn't exist, needs to be copied
         }
 
         try {
-            // Check file size and modification time
-            long destSize = Files.size(destinationFile);
-            long destModified = Files.getLastModifiedTime(destinationFile).toMillis();
+            boolean changed;
+            if (compressed) {
+                // The stored size is the compressed one, so only the modification time tells
+                changed = sourceFile.getLastModified() > Files.getLastModifiedTime(compressedFile).toMillis();
+            } else {
+                // Check file size and modification time
+                long destSize = Files.size(destinationFile);
+                long destModified = Files.getLastModifiedTime(destinationFile).toMillis();
 
-            return sourceFile.getSize() != destSize || sourceFile.getLastModified() > destModified;
+                changed = sourceFile.getSize() != destSize || sourceFile.getLastModified() > destModified;
+            }
+
+            if (!changed && catalog != null) {
+                // Rebuilding the catalog from what is already on the drive
+                catalog.record(context.relativePath(destinationFile), sourceFile);
+            }
+            return changed;
 
         } catch (IOException e) {
             logger.warn("Could not check destination file: {}", destinationFile, e);
@@ -174,55 +504,177 @@ public class BackupService {
         }
     }
 
-    private void performBackup(String sourcePath, Path destinationPath, Analysis analysis,
-                               Consumer<Progress> progressCallback,
-                               Consumer<String> statusCallback) throws IOException {
+    private void performBackup(BackupContext context, Analysis analysis) throws IOException {
+        context.progress.setTotals(analysis.getFilesToBackup(), analysis.getTotalSizeToBackup());
+
+        runCopyEngine(context, () -> {
+            for (PlannedCopy entry : analysis.getPlannedCopies()) {
+                executePlannedCopy(context, entry);
+            }
+        });
+    }
+
+    /**
+     * Walks the source once, handing every planned entry to the copy engine as soon as it is found.
+     * Totals grow while the walk runs, so the space check happens incrementally.
+     */
+    private Analysis performStreamingBackup(BackupContext context, String sourceUrl,
+                                            long availableSpace) throws IOException {
+        Analysis analysis = new Analysis();
+        PlanTotals totals = new PlanTotals();
+
+        PlanSink sink = entry -> {
+            long bytes = totals.bytes.sum();
+            if (availableSpace < bytes) {
+                throw insufficientSpace(bytes, availableSpace);
+            }
+
+            context.progress.setTotals(totals.entries.sum(), bytes);
 
-        Progress progress = new Progress();
-        progress.totalFiles = analysis.getFilesToBackup();
-        progress.totalBytes = analysis.getTotalSizeToBackup();
+            executePlannedCopy(context, entry);
+        };
+
+        runCopyEngine(context, () -> walk(context, sourceUrl, totals, sink));
+        totals.copyTo(analysis);
+
+        logger.info("Streaming backup: {} files copied, {} bytes total",
+                analysis.getFilesToBackup(), analysis.getTotalSizeToBackup());
 
-        copyDirectory(sourcePath, destinationPath, progress, progressCallback, statusCallback);
+        return analysis;
     }
 
-    private void copyDirectory(String sourcePath, Path destinationPath, Progress progress,
-                               Consumer<Progress> progressCallback,
-                               Consumer<String> statusCallback) throws IOException {
+    private void runCopyEngine(BackupContext context, CopyEngine.CopyTask feeder) throws IOException {
+        Files.createDirectories(context.destinationRoot);
+
+        Configuration config = context.config;
+        int maxThreads = config.isAdaptiveConcurrency()
+                ? Math.max(config.getCopyThreads(), config.getMaxCopyThreads())
+                : config.getCopyThreads();
+
+        // Closed in reverse: the engine stops its workers before the copier they use is closed
+        try (FileCopier copier = new FileCopier(networkService, config);
+             CopyEngine engine = new CopyEngine(config.getCopyThreads(), maxThreads)) {
+            context.engine = engine;
+            context.copier = copier;
+
+            // Tunes the engine on its own thread until the copies are done
+            ConcurrencyController controller = config.isAdaptiveConcurrency()
+                    ? new ConcurrencyController(engine, networkService.getReadMonitor(),
+                            config.getCopyThreads(), 1, maxThreads)
+                    : null;
+            try {
+                feeder.run();
+                engine.awaitCompletion();
+            } finally {
+                if (controller != null) {
+                    controller.close();
+                }
+            }
+        }
+    }
 
-        // Create destination directory if it doesn't exist
-        if (!Files.exists(destinationPath)) {
-            Files.createDirectories(destinationPath);
+    private void executePlannedCopy(BackupContext context, PlannedCopy entry) throws IOException {
+        FileInfo file = entry.getSource();
+        Path destination = entry.getDestination();
+
+        if (file.isDirectory()) {
+            // Created on the feeding thread, before any of its files are handed to the engine
+            networkService.getRateGovernor().acquireWriteOp();
+            Files.createDirectories(destination);
+            context.sync.entryCreated(destination);
+            context.progress.entryCompleted(0);
+        } else if (entry.getLinkTarget() != null) {
+            context.engine.submit(() -> linkFile(context, file, destination, entry.getLinkTarget()));
+        } else {
+            context.engine.submit(() -> copyFile(context, file, destination));
         }
+    }
 
-        List<FileInfo> files = networkService.listFiles(sourcePath);
+    private static IOException insufficientSpace(long requiredSpace, long availableSpace) {
+        return new IOException("Insufficient disk space. Need " +
+                formatBytes(requiredSpace) + ", available " +
+                formatBytes(availableSpace));
+    }
 
-        for (FileInfo file : files) {
-            if (file.isDirectory()) {
-                Path destDir = destinationPath.resolve(file.getName());
-                copyDirectory(file.getPath(), destDir, progress, progressCallback, statusCallback);
+    private void copyFile(BackupContext context, FileInfo file, Path destFile) throws IOException {
+        context.progress.fileStarted(file.getName());
+        networkService.getRateGovernor().acquireWriteOp();
+
+        String relativePath = context.relativePath(destFile);
+        // The dedup store addresses content by its SHA-256
+        ContentChecksum checksum = context.checksums != null || context.dedupStore != null
+                ? new ContentChecksum(context.dedupStore != null || context.config.isChecksumSha256())
+                : null;
+
+        if (context.isPacked(file)) {
+            context.copier.copyToPack(file, context.packStore, relativePath, checksum);
+            recordChecksum(context, relativePath, file, checksum);
+            // Counts toward the batch that forces the pack and its index
+            context.sync.stored(file.getSize(), () -> { });
+        } else {
+            Path written;
+            if (context.dedupStore != null) {
+                written = context.copier.copyDeduplicated(file, context.dedupStore, destFile, relativePath, checksum);
             } else {
-                Path destFile = destinationPath.resolve(file.getName());
+                CheckpointJournal.Checkpoint checkpoint = context.journal != null
+                        ? context.journal.checkpoint(relativePath, file)
+                        : null;
+                written = context.copier.copy(file, destFile, checkpoint, checksum);
+            }
 
-                if (shouldCopyFile(file, destFile)) {
-                    Platform.runLater(() -> statusCallback.accept("Copying: " + file.getName()));
+            recordChecksum(context, relativePath, file, checksum);
+            // Only journal and catalog the file as done once the durability policy has it on the
+            // drive, so neither lets a later run skip a copy lost with the write cache
+            CheckpointJournal journal = context.journal;
+            DestinationCatalog catalog = context.catalog;
+            long crc32c = checksum != null ? checksum.getCrc32c() : 0;
+            context.sync.committed(written, file.getSize(), () -> {
+                if (journal != null) {
+                    journal.recordCompleted(relativePath, file);
+                }
+                if (catalog != null) {
+                    catalog.record(relativePath, file, crc32c);
+                }
+            });
+        }
 
-                    copyFile(file.getPath(), destFile);
+        context.progress.entryCompleted(file.getSize());
+    }
 
-                    progress.filesProcessed++;
-                    progress.bytesProcessed += file.getSize();
+    /**
+     * Hard links a file unchanged since the previous snapshot, carrying over what is known about it.
+     */
+    private void linkFile(BackupContext context, FileInfo file, Path destFile, Path previousFile) throws IOException {
+        networkService.getRateGovernor().acquireWriteOp();
 
-                    Platform.runLater(() -> progressCallback.accept(progress));
-                }
-            }
+        String relativePath = context.relativePath(destFile);
+        Path link = context.snapshots.link(destFile, previousFile);
+
+        ChecksumManifest.Entry checksums = context.snapshots.previousChecksums(relativePath);
+        if (context.checksums != null && checksums != null) {
+            context.checksums.record(relativePath, checksums);
         }
+        if (context.catalog != null) {
+            context.catalog.record(relativePath, file, checksums != null ? checksums.crc32c() : 0);
+        }
+        context.sync.entryCreated(link);
+        context.progress.entryCompleted(0);
     }
 
-    private void copyFile(String sourcePath, Path destinationPath) throws IOException {
-        try (InputStream input = networkService.openFile(sourcePath)) {
-            Files.copy(input, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+    private static void recordChecksum(BackupContext context, String relativePath, FileInfo file,
+                                       ContentChecksum checksum) throws IOException {
+        if (context.checksums != null) {
+            context.checksums.record(relativePath, file, checksum);
         }
     }
 
+    /**
+     * Changes the traffic limits, including for a backup that is already running.
+     */
+    public void updateRateLimits(RateLimits defaultLimits, List<RateProfile> profiles) {
+        networkService.getRateGovernor().configure(defaultLimits, profiles);
+    }
+
     public void cancelBackup() {
         if (currentBackupTask != null && currentBackupTask.isRunning()) {
             currentBackupTask.cancel();
@@ -238,6 +690,7 @@ public class BackupService {
             currentBackupTask.cancel();
         }
         executor.shutdown();
+        stopWatching();
         networkService.disconnect();
     }
 
@@ -0,0 +1,144 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-capacity pool of direct copy buffers shared by every transfer of a backup run. Buffers are
+ * allocated lazily up to the capacity; once all of them are in flight, callers wait for one to be
+ * released, which caps the native memory a run can hold regardless of how many files are being
+ * copied. Direct buffers go to the destination channel without the JDK's temporary copy.
+ */
+public class BufferPool {
+
+    // jcifs reads into byte arrays; this is the most a single read asks the source for
+    private static final int STAGING_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> staging = ThreadLocal.withInitial(() -> new byte[STAGING_SIZE]);
+
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int capacity;
+    private final int bufferSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    public BufferPool(int capacity, int bufferSize) {
+        this.capacity = Math.max(1, capacity);
+        this.bufferSize = Math.clamp(bufferSize, AppConstants.MIN_BUFFER_SIZE, AppConstants.MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a cleared buffer, or {@code null} if none became available within the timeout.
+     */
+    public ByteBuffer acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            hits.increment();
+        } else {
+            buffer = tryAllocate();
+        }
+
+        if (buffer == null) {
+            long start = System.nanoTime();
+            buffer = free.poll(timeout, unit);
+            waits.increment();
+            waitNanos.add(System.nanoTime() - start);
+            if (buffer != null) {
+                hits.increment();
+            }
+        }
+
+        if (buffer != null) {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a cleared buffer, waiting as long as it takes for one to be released.
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            ByteBuffer buffer;
+            do {
+                buffer = acquire(1, TimeUnit.SECONDS);
+            } while (buffer == null);
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a copy buffer");
+        }
+    }
+
+    private ByteBuffer tryAllocate() {
+        int count;
+        do {
+            count = allocated.get();
+            if (count >= capacity) {
+                return null;
+            }
+        } while (!allocated.compareAndSet(count, count + 1));
+
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends.
+     *
+     * @return {@code false} once the end of the stream has been reached
+     */
+    public static boolean fill(InputStream input, ByteBuffer buffer) throws IOException {
+        byte[] chunk = staging.get();
+        while (buffer.hasRemaining()) {
+            int read = input.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+            if (read < 0) {
+                return false;
+            }
+            buffer.put(chunk, 0, read);
+        }
+        return true;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool{size=%d, allocated=%d/%d, hits=%d, misses=%d, waits=%d, waited=%dms}",
+                bufferSize, allocated.get(), capacity, getHits(), getMisses(), getWaits(), getWaitMillis());
+    }
+}
@@ -0,0 +1,199 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+import jcifs.CIFSException;
+import jcifs.FileNotifyInformation;
+import jcifs.SmbWatchHandle;
+import jcifs.smb.SmbFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the paths changed under a source directory from SMB change notifications, so a backup
+ * can copy just those instead of walking the share. The watch covers the whole subtree and runs
+ * for as long as the application does, on a session of its own.
+ * <p>
+ * The change set is only complete when the watch ran without a gap since the previous backup took
+ * its changes. A notification overflow, a broken watch or a failed backup makes the next backup
+ * walk the share in full.
+ */
+public class ChangeWatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeWatcher.class);
+
+    private static final int FILTER = FileNotifyInformation.FILE_NOTIFY_CHANGE_NAME
+            | FileNotifyInformation.FILE_NOTIFY_CHANGE_SIZE
+            | FileNotifyInformation.FILE_NOTIFY_CHANGE_LAST_WRITE;
+    private static final long RETRY_MILLIS = 10_000;
+
+    /**
+     * Paths changed since the previous backup, relative to the watched directory with {@code /}
+     * separators.
+     *
+     * @param complete whether the paths are all that changed; otherwise the source must be walked
+     * @param added    the changed paths that appeared by creation or rename, whose subtrees are new
+     */
+    public record Changes(boolean complete, Set<String> changed, Set<String> added) {
+    }
+
+    private final SmbConnectionPool pool;
+    private final String rootUrl;
+    private final Thread thread;
+
+    private Set<String> changed = new HashSet<>();
+    private Set<String> added = new HashSet<>();
+    // Destination of the backup that took the changes last, which they are changes from
+    private Object baseline;
+    private boolean overflowed;
+    private volatile boolean closed;
+    private volatile SmbWatchHandle handle;
+
+    /**
+     * Starts watching. Changes count from when this returns, since the server queues them on the
+     * open handle between notifications.
+     *
+     * @param pool sessions used by this watcher alone, closed with it
+     */
+    ChangeWatcher(SmbConnectionPool pool, String rootUrl) throws IOException {
+        this.pool = pool;
+        this.rootUrl = rootUrl;
+        SmbConnectionPool.Lease lease = pool.lease();
+        this.handle = open(lease);
+
+        this.thread = new Thread(() -> run(lease), "smb-change-watch");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching {} for changes", rootUrl);
+    }
+
+    private SmbWatchHandle open(SmbConnectionPool.Lease lease) throws CIFSException {
+        try {
+            return new SmbFile(rootUrl, lease.context()).watch(FILTER, true);
+        } catch (IOException e) {
+            lease.failed(e);
+            lease.close();
+            throw e instanceof CIFSException cifs ? cifs : new CIFSException("Could not watch " + rootUrl, e);
+        }
+    }
+
+    public boolean isWatching(String url) {
+        return !closed && rootUrl.equals(url);
+    }
+
+    private void run(SmbConnectionPool.Lease lease) {
+        while (!closed) {
+            try {
+                List<FileNotifyInformation> events = handle.watch();
+                if (events == null) {
+                    if (closed) {
+                        break;
+                    }
+                    // Cancelled, which only closing does on purpose: otherwise the watch is gone
+                    throw new CIFSException("Change watch cancelled");
+                }
+                if (events.isEmpty()) {
+                    logger.info("Change notifications overflowed on {}, next backup walks the share", rootUrl);
+                    overflow();
+                } else {
+                    record(events);
+                }
+            } catch (CIFSException e) {
+                if (closed) {
+                    break;
+                }
+                logger.warn("Change watch on {} broke, next backup walks the share: {}", rootUrl, e.getMessage());
+                overflow();
+                lease.failed(e);
+                closeQuietly(handle);
+                lease.close();
+                lease = reopen();
+                if (lease == null) {
+                    break;
+                }
+            }
+        }
+        lease.close();
+    }
+
+    private SmbConnectionPool.Lease reopen() {
+        while (!closed) {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+                SmbConnectionPool.Lease lease = pool.lease();
+                handle = open(lease);
+                return lease;
+            } catch (InterruptedException e) {
+                return null;
+            } catch (IOException e) {
+                logger.debug("Could not watch {} again yet", rootUrl, e);
+            }
+        }
+        return null;
+    }
+
+    private synchronized void record(List<FileNotifyInformation> events) {
+        if (overflowed) {
+            return;
+        }
+        for (FileNotifyInformation event : events) {
+            String path = event.getFileName().replace('\\', '/');
+            changed.add(path);
+            if (event.getAction() == FileNotifyInformation.FILE_ACTION_ADDED
+                    || event.getAction() == FileNotifyInformation.FILE_ACTION_RENAMED_NEW_NAME) {
+                added.add(path);
+            }
+        }
+        if (changed.size() > AppConstants.MAX_WATCHED_CHANGES) {
+            logger.info("More than {} changes on {}, next backup walks the share",
+                    AppConstants.MAX_WATCHED_CHANGES, rootUrl);
+            overflow();
+        }
+    }
+
+    private synchronized void overflow() {
+        overflowed = true;
+        changed = new HashSet<>();
+        added = new HashSet<>();
+    }
+
+    /**
+     * Takes the changes collected since the previous call, starting a new set for the next backup.
+     * The changes are only complete for the destination the previous call was made for.
+     */
+    public synchronized Changes drain(Object destination) {
+        Changes changes = new Changes(destination.equals(baseline) && !overflowed && !closed, changed, added);
+        changed = new HashSet<>();
+        added = new HashSet<>();
+        baseline = destination;
+        overflowed = false;
+        return changes;
+    }
+
+    /**
+     * Makes the next backup walk the share, for when the changes taken last were not all backed up.
+     */
+    public void invalidate() {
+        overflow();
+    }
+
+    private static void closeQuietly(SmbWatchHandle handle) {
+        try {
+            handle.close();
+        } catch (CIFSException e) {
+            logger.debug("Error closing change watch", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        closeQuietly(handle);
+        pool.close();
+    }
+}
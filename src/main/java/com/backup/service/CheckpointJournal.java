@@ -0,0 +1,194 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of a backup run, kept on the destination drive until the run succeeds. It
+ * records each completed file and, for large files, the offset up to which the destination is
+ * known to be written. A run restarted against the same source skips journaled files without
+ * checking them again and resumes large files from their last checkpoint.
+ */
+public class CheckpointJournal implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    public static final String JOURNAL_FILE_NAME = ".backup-journal";
+    private static final int MAGIC = 0x4A524E4C;
+    private static final byte COMPLETED = 'C';
+    private static final byte PROGRESS = 'P';
+
+    private record Entry(long size, long lastModified, long offset) {
+    }
+
+    /**
+     * Progress of one file: where a copy may resume and how far it has come since.
+     */
+    public class Checkpoint {
+        private final String relativePath;
+        private final FileInfo source;
+        private final long resumeOffset;
+
+        private Checkpoint(String relativePath, FileInfo source, long resumeOffset) {
+            this.relativePath = relativePath;
+            this.source = source;
+            this.resumeOffset = resumeOffset;
+        }
+
+        public long getResumeOffset() {
+            return resumeOffset;
+        }
+
+        /**
+         * Records that every byte before {@code offset} is on the destination. Callers force the
+         * destination channel first, so the journal never claims more than the drive holds.
+         */
+        public void advance(long offset) throws IOException {
+            append(PROGRESS, relativePath, source, offset);
+        }
+    }
+
+    private final Path journalPath;
+    private final Map<String, Entry> completed = new HashMap<>();
+    private final Map<String, Entry> inFlight = new HashMap<>();
+    private final DataOutputStream output;
+
+    public CheckpointJournal(Path destinationRoot, String sourceUrl) throws IOException {
+        this.journalPath = destinationRoot.resolve(JOURNAL_FILE_NAME);
+
+        boolean resumed = Files.exists(journalPath) && load(sourceUrl);
+        if (!resumed) {
+            Files.deleteIfExists(journalPath);
+        }
+
+        this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        if (!resumed) {
+            output.writeInt(MAGIC);
+            output.writeUTF(sourceUrl);
+            output.flush();
+        } else {
+            logger.info("Resuming interrupted backup: {} files already copied, {} partially copied",
+                    completed.size(), inFlight.size());
+        }
+    }
+
+    private boolean load(String sourceUrl) {
+        long validLength;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+            if (input.readInt() != MAGIC || !input.readUTF().equals(sourceUrl)) {
+                logger.info("Discarding journal of an interrupted backup from another source");
+                return false;
+            }
+            validLength = 4 + PackStore.utfLength(sourceUrl);
+
+            while (true) {
+                byte type;
+                String path;
+                Entry entry;
+                try {
+                    type = input.readByte();
+                    path = input.readUTF();
+                    entry = new Entry(input.readLong(), input.readLong(), input.readLong());
+                } catch (EOFException e) {
+                    break;
+                }
+                validLength += 1 + PackStore.utfLength(path) + 24;
+
+                if (type == COMPLETED) {
+                    completed.put(path, entry);
+                    inFlight.remove(path);
+                } else if (type == PROGRESS) {
+                    inFlight.put(path, entry);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read backup journal {}, starting over", journalPath, e);
+            completed.clear();
+            inFlight.clear();
+            return false;
+        }
+
+        // Drop a record cut short by the crash, so new records do not follow a torn one
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Could not repair backup journal {}, starting over", journalPath, e);
+            completed.clear();
+            inFlight.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Whether an interrupted run already copied this exact version of the file.
+     */
+    public synchronized boolean isCompleted(String relativePath, FileInfo source) {
+        Entry entry = completed.get(relativePath);
+        return entry != null && entry.size() == source.getSize() && entry.lastModified() == source.getLastModified();
+    }
+
+    /**
+     * Whether an interrupted run left this file half written. Its size on the drive may already
+     * match the source, since segments are written out of order.
+     */
+    public synchronized boolean isPartial(String relativePath) {
+        return inFlight.containsKey(relativePath);
+    }
+
+    /**
+     * Starts tracking a copy, resuming from the journaled offset when the source is unchanged.
+     */
+    public synchronized Checkpoint checkpoint(String relativePath, FileInfo source) {
+        Entry entry = inFlight.get(relativePath);
+        boolean resumable = entry != null && entry.size() == source.getSize()
+                && entry.lastModified() == source.getLastModified();
+        return new Checkpoint(relativePath, source, resumable ? entry.offset() : 0);
+    }
+
+    public void recordCompleted(String relativePath, FileInfo source) throws IOException {
+        append(COMPLETED, relativePath, source, source.getSize());
+    }
+
+    private synchronized void append(byte type, String relativePath, FileInfo source, long offset)
+            throws IOException {
+        output.writeByte(type);
+        output.writeUTF(relativePath);
+        output.writeLong(source.getSize());
+        output.writeLong(source.getLastModified());
+        output.writeLong(offset);
+        // Reach the OS on every record so a crash of the application loses nothing
+        output.flush();
+    }
+
+    /**
+     * Removes the journal once the whole run has succeeded.
+     */
+    public synchronized void finish() throws IOException {
+        output.close();
+        Files.deleteIfExists(journalPath);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+}
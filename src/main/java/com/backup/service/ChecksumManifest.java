@@ -0,0 +1,135 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checksums of every file backed up to a destination drive, computed while the file was copied.
+ * Checking the drive, or telling whether a file changed, then only needs the drive itself. Off by
+ * default: checksumming local copies routes them through a buffer instead of {@code transferTo}.
+ * <p>
+ * One line per copy: CRC32C, SHA-256 or {@code -}, size, modification time and relative path,
+ * tab separated. Later lines replace earlier ones for the same path; the file is rewritten once
+ * superseded lines outnumber the entries.
+ */
+public class ChecksumManifest implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChecksumManifest.class);
+
+    public static final String MANIFEST_FILE_NAME = ".backup-checksums";
+    private static final String NO_SHA256 = "-";
+
+    public record Entry(long crc32c, String sha256, long size, long lastModified) {
+    }
+
+    private final Path manifestPath;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private BufferedWriter writer;
+    private long linesOnDisk;
+
+    public ChecksumManifest(Path destinationRoot) throws IOException {
+        this.manifestPath = destinationRoot.resolve(MANIFEST_FILE_NAME);
+        if (Files.exists(manifestPath)) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        byte[] content = Files.readAllBytes(manifestPath);
+        int validLength = content.length;
+        while (validLength > 0 && content[validLength - 1] != '\n') {
+            validLength--;
+        }
+        if (validLength < content.length) {
+            // Drop a line that was only partly appended when a previous run stopped
+            try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+
+        List<String> lines = new String(content, 0, validLength, StandardCharsets.UTF_8).lines().toList();
+        for (String line : lines) {
+            // The path may itself contain tabs
+            String[] fields = line.split("\t", 5);
+            if (fields.length == 5) {
+                entries.put(fields[4], new Entry(Long.parseLong(fields[0], 16),
+                        NO_SHA256.equals(fields[1]) ? null : fields[1],
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+            }
+        }
+        linesOnDisk = lines.size();
+        logger.info("Loaded checksum manifest with {} entries", entries.size());
+    }
+
+    /**
+     * Returns the checksums recorded for a path, or {@code null}.
+     */
+    public synchronized Entry entry(String relativePath) {
+        return entries.get(relativePath);
+    }
+
+    public void record(String relativePath, FileInfo source, ContentChecksum checksum) throws IOException {
+        byte[] sha256 = checksum.getSha256();
+        record(relativePath, new Entry(checksum.getCrc32c(), sha256 != null ? HexFormat.of().formatHex(sha256) : null,
+                source.getSize(), source.getLastModified()));
+    }
+
+    /**
+     * Records checksums carried over from another manifest, for content that was not copied again.
+     */
+    public synchronized void record(String relativePath, Entry entry) throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(manifestPath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        writeEntry(writer, relativePath, entry);
+        linesOnDisk++;
+        entries.put(relativePath, entry);
+    }
+
+    private static void writeEntry(BufferedWriter writer, String relativePath, Entry entry) throws IOException {
+        writer.write(String.format("%08x", entry.crc32c()) + "\t"
+                + (entry.sha256() != null ? entry.sha256() : NO_SHA256) + "\t"
+                + entry.size() + "\t" + entry.lastModified() + "\t" + relativePath);
+        writer.newLine();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (linesOnDisk <= 2L * entries.size()) {
+            return;
+        }
+
+        Path temp = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try (BufferedWriter output = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeEntry(output, entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        linesOnDisk = entries.size();
+    }
+}
@@ -0,0 +1,235 @@
+package com.backup.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a stream to the destination as gzip, compressing each pooled block as an independent gzip
+ * member on a worker pool while the next blocks are read. The pool compresses the pooled buffers
+ * themselves, holding each until its member is done. Concatenated members are a valid gzip
+ * file for {@code gunzip} and {@link java.util.zip.GZIPInputStream}. The first block doubles as a
+ * sample: when it does not shrink enough, the file is written as is and the pool is not used.
+ */
+class CompressedTransfer {
+
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<>();
+
+    /**
+     * Deflaters at one level, reused across the blocks and files of a copier. Closing frees their
+     * native zlib memory; it must wait until nothing compresses with them any more, and a deflater
+     * released afterwards is freed at once.
+     */
+    static final class Deflaters implements AutoCloseable {
+        private final int level;
+        private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed;
+
+        Deflaters(int level) {
+            this.level = level;
+        }
+
+        Deflater acquire() {
+            Deflater deflater = idle.poll();
+            if (deflater == null) {
+                return new Deflater(level, true);
+            }
+            deflater.reset();
+            return deflater;
+        }
+
+        void release(Deflater deflater) {
+            idle.offer(deflater);
+            if (closed) {
+                endIdle();
+            }
+        }
+
+        private void endIdle() {
+            Deflater deflater;
+            while ((deflater = idle.poll()) != null) {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            endIdle();
+        }
+    }
+
+    private final BufferPool pool;
+    private final ExecutorService readExecutor;
+    private final ExecutorService compressExecutor;
+    private final RateGovernor governor;
+    private final Deflaters deflaters;
+    private final int pipelineDepth;
+
+    CompressedTransfer(BufferPool pool, ExecutorService readExecutor, ExecutorService compressExecutor,
+                       RateGovernor governor, Deflaters deflaters, int pipelineDepth) {
+        this.pool = pool;
+        this.readExecutor = readExecutor;
+        this.compressExecutor = compressExecutor;
+        this.governor = governor;
+        this.deflaters = deflaters;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * A block handed to the compression pool, which owns it from then on. The block goes back to
+     * the buffer pool once compressed, or when discarded before compression started.
+     */
+    private final class Member implements Callable<byte[]> {
+        private final ByteBuffer block;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<byte[]> result;
+
+        Member(ByteBuffer block) {
+            this.block = block;
+        }
+
+        @Override
+        public byte[] call() {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return compressMember(block);
+            } finally {
+                pool.release(block);
+            }
+        }
+
+        void discard() {
+            if (claimed.compareAndSet(false, true)) {
+                pool.release(block);
+            }
+            result.cancel(false);
+        }
+    }
+
+    /**
+     * @param checksum fed the uncompressed source blocks, or {@code null}
+     * @return whether the output was compressed; otherwise it holds the source bytes unchanged
+     */
+    boolean apply(InputStream source, FileChannel output, ContentChecksum checksum) throws IOException {
+        Deque<Member> pending = new ArrayDeque<>();
+        Boolean[] compressing = {null};
+
+        try {
+            new StreamPipe(pool, pipelineDepth, governor).transferKeeping(source, readExecutor, block -> {
+                if (checksum != null) {
+                    checksum.update(block);
+                }
+                if (compressing[0] == null) {
+                    int length = block.remaining();
+                    byte[] member = compressMember(block);
+                    compressing[0] = member.length <= length * MAX_COMPRESSED_RATIO;
+                    write(output, compressing[0] ? ByteBuffer.wrap(member) : block);
+                    return false;
+                }
+                if (!compressing[0]) {
+                    write(output, block);
+                    return false;
+                }
+
+                // Written before the block is handed over, so a failure leaves it with the pipe
+                while (pending.size() >= pipelineDepth) {
+                    write(output, ByteBuffer.wrap(await(pending.poll().result)));
+                }
+                Member member = new Member(block);
+                member.result = compressExecutor.submit(member);
+                pending.add(member);
+                return true;
+            });
+
+            while (!pending.isEmpty()) {
+                write(output, ByteBuffer.wrap(await(pending.poll().result)));
+            }
+        } finally {
+            pending.forEach(Member::discard);
+        }
+
+        // An empty source is left empty rather than given a gzip header
+        return Boolean.TRUE.equals(compressing[0]);
+    }
+
+    private void write(FileChannel output, ByteBuffer content) throws IOException {
+        governor.acquireWrite(content.remaining());
+        while (content.hasRemaining()) {
+            output.write(content);
+        }
+    }
+
+    /**
+     * Compresses a block straight from its buffer, leaving the buffer's position alone. The
+     * deflate output goes to a scratch array kept per thread and is copied out once, at its size.
+     */
+    private byte[] compressMember(ByteBuffer content) {
+        int length = content.remaining();
+        Deflater deflater = deflaters.acquire();
+        try {
+            return compressMember(content, length, deflater);
+        } finally {
+            deflaters.release(deflater);
+        }
+    }
+
+    private static byte[] compressMember(ByteBuffer content, int length, Deflater deflater) {
+        deflater.setInput(content.duplicate());
+        deflater.finish();
+
+        // Incompressible content only grows by a few bytes per stored deflate block
+        byte[] scratch = SCRATCH.get();
+        int bound = GZIP_HEADER.length + length + length / 1024 + 64;
+        if (scratch == null || scratch.length < bound) {
+            scratch = new byte[bound];
+            SCRATCH.set(scratch);
+        }
+        System.arraycopy(GZIP_HEADER, 0, scratch, 0, GZIP_HEADER.length);
+        int size = GZIP_HEADER.length;
+        while (!deflater.finished()) {
+            if (size == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+                SCRATCH.set(scratch);
+            }
+            size += deflater.deflate(scratch, size, scratch.length - size);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        byte[] member = Arrays.copyOf(scratch, size + 8);
+        ByteBuffer.wrap(member, size, 8).order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue()).putInt(length);
+        return member;
+    }
+
+    private static byte[] await(Future<byte[]> member) throws IOException {
+        try {
+            return member.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
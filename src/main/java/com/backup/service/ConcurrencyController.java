@@ -0,0 +1,105 @@
+package com.backup.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the number of files the copy engine keeps in flight while a backup runs. Each sample
+ * period it compares read throughput and latency from the {@link ReadMonitor}: concurrency grows
+ * by one while throughput keeps rising, steps back and holds once an increase stops paying off,
+ * and is cut by a quarter when read latency climbs well above the best seen this run.
+ */
+class ConcurrencyController implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    private static final long SAMPLE_SECONDS = 2;
+    private static final double MIN_GAIN = 1.05;
+    private static final double LATENCY_BACKOFF = 2.0;
+    private static final int HOLD_SAMPLES = 5;
+
+    private final CopyEngine engine;
+    private final ReadMonitor monitor;
+    private final int minimum;
+    private final int maximum;
+    private final ScheduledExecutorService scheduler;
+
+    private int limit;
+    private boolean increased;
+    private int holdSamples;
+    private double lastThroughput;
+    private double bestLatency = Double.MAX_VALUE;
+    private long lastBytes;
+    private long lastCalls;
+    private long lastNanos;
+
+    ConcurrencyController(CopyEngine engine, ReadMonitor monitor, int initial, int minimum, int maximum) {
+        this.engine = engine;
+        this.monitor = monitor;
+        this.minimum = Math.max(1, minimum);
+        this.maximum = Math.max(this.minimum, maximum);
+        this.limit = Math.clamp(initial, this.minimum, this.maximum);
+        this.lastBytes = monitor.getBytes();
+        this.lastCalls = monitor.getCalls();
+        this.lastNanos = monitor.getNanos();
+
+        engine.setConcurrency(limit);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(CopyEngine.namedThreads("backup-tuner"));
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void sample() {
+        long bytes = monitor.getBytes();
+        long calls = monitor.getCalls();
+        long nanos = monitor.getNanos();
+        long sampleCalls = calls - lastCalls;
+        double throughput = (double) (bytes - lastBytes) / SAMPLE_SECONDS;
+        double latency = sampleCalls > 0 ? (double) (nanos - lastNanos) / sampleCalls : 0;
+        lastBytes = bytes;
+        lastCalls = calls;
+        lastNanos = nanos;
+
+        if (sampleCalls == 0) {
+            // Nothing read, e.g. while the walk looks at unchanged directories
+            return;
+        }
+        bestLatency = Math.min(bestLatency, latency);
+
+        if (latency > bestLatency * LATENCY_BACKOFF && limit > minimum) {
+            setLimit(limit - Math.max(1, limit / 4), "read latency " + Math.round(latency / 1_000_000) + "ms");
+            holdSamples = HOLD_SAMPLES;
+            increased = false;
+        } else if (increased && throughput < lastThroughput * MIN_GAIN) {
+            // The last step did not pay off: the peak is just below
+            setLimit(limit - 1, "throughput plateau");
+            holdSamples = HOLD_SAMPLES;
+            increased = false;
+        } else if (holdSamples > 0) {
+            holdSamples--;
+            increased = false;
+        } else if (limit < maximum) {
+            setLimit(limit + 1, "probing for more throughput");
+            increased = true;
+        }
+        lastThroughput = throughput;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        newLimit = Math.clamp(newLimit, minimum, maximum);
+        if (newLimit != limit) {
+            logger.debug("Copy concurrency {} -> {} ({})", limit, newLimit, reason);
+            limit = newLimit;
+            engine.setConcurrency(limit);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        logger.info("Copy concurrency settled at {} files in flight", limit);
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 
 public class ConfigurationService {
 
@@ -19,6 +20,8 @@ public class ConfigurationService {
     private final ObjectMapper objectMapper;
     private final Path configPath;
     private Configuration currentConfig;
+    // When the file last read or written was modified, to spot edits made outside the application
+    private FileTime loadedModified;
 
     public ConfigurationService() {
         this.objectMapper = new ObjectMapper();
@@ -47,10 +50,18 @@ public class ConfigurationService {
         return currentConfig;
     }
 
+    /**
+     * A deep copy of the current configuration, for a run to adjust without touching what is saved.
+     */
+    public Configuration copyConfiguration() {
+        return objectMapper.convertValue(currentConfig, Configuration.class);
+    }
+
     public void saveConfiguration(Configuration config) {
         try {
             objectMapper.writeValue(configPath.toFile(), config);
             this.currentConfig = config;
+            this.loadedModified = Files.getLastModifiedTime(configPath);
             logger.info("Configuration saved to: {}", configPath);
         } catch (IOException e) {
             logger.error("Failed to save configuration", e);
@@ -58,9 +69,34 @@ public class ConfigurationService {
         }
     }
 
+    /**
+     * Rereads the configuration file if it was edited since it was last read or saved. The history
+     * kept in memory is carried over, since runs append to it between saves.
+     *
+     * @return whether the configuration was replaced
+     */
+    public boolean reloadIfChanged() {
+        try {
+            if (!Files.exists(configPath) || Files.getLastModifiedTime(configPath).equals(loadedModified)) {
+                return false;
+            }
+            FileTime modified = Files.getLastModifiedTime(configPath);
+            Configuration reloaded = objectMapper.readValue(configPath.toFile(), Configuration.class);
+            reloaded.setHistories(currentConfig.getHistories());
+            currentConfig = reloaded;
+            loadedModified = modified;
+            logger.info("Configuration reloaded from: {}", configPath);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Could not reload configuration, keeping the current one", e);
+            return false;
+        }
+    }
+
     private void loadConfiguration() {
         try {
             if (Files.exists(configPath)) {
+                loadedModified = Files.getLastModifiedTime(configPath);
                 currentConfig = objectMapper.readValue(configPath.toFile(), Configuration.class);
                 logger.info("Configuration loaded from: {}", configPath);
             } else {
@@ -0,0 +1,125 @@
+package com.backup.service;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums of a file's content, fed block by block while it streams to the destination so they
+ * cost no extra read. CRC32C, which the JDK computes with CPU instructions, is always kept;
+ * SHA-256 only when requested.
+ */
+public class ContentChecksum {
+
+    private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+    private final CRC32C crc32c = new CRC32C();
+    private final MessageDigest sha256;
+    private long combinedCrc32c = -1;
+    private byte[] sha256Value;
+
+    public ContentChecksum(boolean withSha256) {
+        this.sha256 = withSha256 ? FileCopier.sha256() : null;
+    }
+
+    public void update(ByteBuffer block) {
+        crc32c.update(block.duplicate());
+        if (sha256 != null) {
+            sha256.update(block.duplicate());
+        }
+    }
+
+    /**
+     * Starts over, for content that is read again after a pass that was only checksummed.
+     */
+    void reset() {
+        crc32c.reset();
+        if (sha256 != null) {
+            sha256.reset();
+        }
+        combinedCrc32c = -1;
+        sha256Value = null;
+    }
+
+    public boolean hasSha256() {
+        return sha256 != null;
+    }
+
+    public long getCrc32c() {
+        return combinedCrc32c >= 0 ? combinedCrc32c : crc32c.getValue();
+    }
+
+    /**
+     * Sets the CRC of content that was checksummed in pieces, see {@link #combineCrc32c}.
+     */
+    void setCrc32c(long value) {
+        combinedCrc32c = value;
+    }
+
+    /**
+     * @return the SHA-256 digest, or {@code null} when it was not requested
+     */
+    public byte[] getSha256() {
+        if (sha256 != null && sha256Value == null) {
+            sha256Value = sha256.digest();
+        }
+        return sha256Value;
+    }
+
+    /**
+     * CRC32C of two pieces of content joined, given the CRC of each and the second one's length.
+     * Segments copied out of order are checksummed separately and combined here, the way zlib
+     * combines CRC-32 values: appending {@code length} zero bytes is a linear map over GF(2).
+     */
+    static long combineCrc32c(long first, long second, long length) {
+        if (length <= 0) {
+            return first;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = CRC32C_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                first = times(even, first);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length & 1) != 0) {
+                first = times(odd, first);
+            }
+            length >>= 1;
+        } while (length != 0);
+
+        return first ^ second;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.backup.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs file copies on a bounded worker pool. At most twice as many copies as the pool can grow to
+ * are queued or running at once, so the directory walk feeding the engine blocks instead of
+ * buffering the whole tree. The number of workers can be changed while copies run.
+ */
+public class CopyEngine implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CopyEngine.class);
+
+    @FunctionalInterface
+    public interface CopyTask {
+        void run() throws IOException;
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final int maxThreads;
+    private final Semaphore slots;
+    private final int capacity;
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    public CopyEngine(int threads) {
+        this(threads, threads);
+    }
+
+    public CopyEngine(int threads, int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+        int poolSize = Math.clamp(threads, 1, this.maxThreads);
+        this.workers = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), namedThreads("backup-copy"));
+        this.capacity = this.maxThreads * 2;
+        this.slots = new Semaphore(capacity);
+        logger.debug("Copy engine started with {} workers", poolSize);
+    }
+
+    /**
+     * Resizes the pool. Extra workers start on queued copies at once; surplus workers finish
+     * their current copy before they exit.
+     */
+    public synchronized void setConcurrency(int threads) {
+        int poolSize = Math.clamp(threads, 1, maxThreads);
+        if (poolSize > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(poolSize);
+            workers.setCorePoolSize(poolSize);
+        } else {
+            workers.setCorePoolSize(poolSize);
+            workers.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    public void submit(CopyTask task) throws IOException {
+        rethrowFailure();
+        acquire(1);
+
+        try {
+            workers.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, new IOException(e.getMessage(), e));
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw new IOException("Copy engine is shut down", e);
+        }
+    }
+
+    /**
+     * Blocks until every submitted copy has finished and rethrows the first failure, if any.
+     */
+    public void awaitCompletion() throws IOException {
+        acquire(capacity);
+        slots.release(capacity);
+        rethrowFailure();
+    }
+
+    private void acquire(int permits) throws InterruptedIOException {
+        try {
+            slots.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels the copies still queued, interrupts the running ones and waits for them to stop, so
+     * nothing writes to the destination once this returns.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        awaitTermination(workers);
+    }
+
+    /**
+     * Waits for a shut down executor's tasks to return, however long they take to notice. An
+     * interrupt while waiting is kept for the caller rather than cutting the wait short.
+     */
+    static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+                logger.debug("Waiting for workers to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
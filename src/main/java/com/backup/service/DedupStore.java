@@ -0,0 +1,281 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed object store on the destination drive. Each distinct file content is kept
+ * once under its SHA-256 and every backup path is a hard link to that object. File systems
+ * without hard links (FAT32, exFAT) get a manifest entry instead, mapping the path to the object.
+ * Hard linked paths are recorded too, in a separate list, since the source's modification time
+ * cannot be kept on an object that many paths share.
+ */
+public class DedupStore implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DedupStore.class);
+
+    public static final String OBJECTS_DIR_NAME = ".backup-objects";
+    private static final String TEMP_DIR_NAME = "tmp";
+    private static final String MANIFEST_FILE = "manifest.tsv";
+    private static final String LINKS_FILE = "links.tsv";
+
+    /**
+     * @param lastModified the source's modification time when its content was stored
+     * @param linked       whether the path is a hard link to the object rather than only recorded here
+     */
+    public record ManifestEntry(String hash, long size, long lastModified, boolean linked) {
+    }
+
+    private final Path objectsDirectory;
+    private final Path tempDirectory;
+    private final Path manifestPath;
+    private final Path linksPath;
+    private final Map<String, ManifestEntry> manifest = new HashMap<>();
+    // Sizes of the content recorded as stored, to tell when hashing a source before writing it may pay off
+    private final Set<Long> storedSizes = new HashSet<>();
+    private BufferedWriter manifestWriter;
+    private BufferedWriter linksWriter;
+    private volatile boolean linksSupported = true;
+
+    private final AtomicLong objectsStored = new AtomicLong();
+    private final AtomicLong duplicatesFound = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong writesSkipped = new AtomicLong();
+
+    public DedupStore(Path destinationRoot) throws IOException {
+        this.objectsDirectory = destinationRoot.resolve(OBJECTS_DIR_NAME);
+        this.tempDirectory = objectsDirectory.resolve(TEMP_DIR_NAME);
+        this.manifestPath = objectsDirectory.resolve(MANIFEST_FILE);
+        this.linksPath = objectsDirectory.resolve(LINKS_FILE);
+        Files.createDirectories(tempDirectory);
+        purgeTempFiles();
+
+        loadEntries(manifestPath, false);
+        loadEntries(linksPath, true);
+        logger.info("Loaded dedup store with {} recorded paths", manifest.size());
+    }
+
+    /**
+     * Deletes the temp files of copies that a previous run did not finish.
+     */
+    private void purgeTempFiles() throws IOException {
+        try (Stream<Path> leftovers = Files.list(tempDirectory)) {
+            for (Path leftover : leftovers.toList()) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    private void loadEntries(Path path, boolean linked) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            // hash, size, modification time, path; the path may itself contain tabs
+            String[] fields = line.split("\t", 4);
+            if (fields.length == 4) {
+                ManifestEntry entry = new ManifestEntry(fields[0],
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]), linked);
+                manifest.put(fields[3], entry);
+                storedSizes.add(entry.size());
+            }
+        }
+    }
+
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(tempDirectory, "incoming-", ".tmp");
+    }
+
+    /**
+     * Returns what was recorded for a path when its content was last stored, or {@code null}.
+     */
+    public synchronized ManifestEntry manifestEntry(String relativePath) {
+        return manifest.get(relativePath);
+    }
+
+    /**
+     * Moves a fully written temp file into the store under its digest, or discards it when the
+     * content is already stored, then points the destination path at the object.
+     *
+     * @return the destination when it was linked, otherwise the object holding the content
+     */
+    public Path commit(Path tempFile, byte[] digest, Path destination, String relativePath,
+                       FileInfo source) throws IOException {
+        String hash = HexFormat.of().formatHex(digest);
+        Path object = objectPath(hash);
+        Files.createDirectories(object.getParent());
+
+        if (storeObject(tempFile, object)) {
+            objectsStored.incrementAndGet();
+        } else {
+            duplicatesFound.incrementAndGet();
+            bytesSaved.addAndGet(source.getSize());
+        }
+        return place(hash, object, destination, relativePath, source);
+    }
+
+    /**
+     * Whether content of this size is recorded as stored, so a source of the same size is worth
+     * hashing before it is written in case it is a duplicate.
+     */
+    public synchronized boolean hasContentOfSize(long size) {
+        return storedSizes.contains(size);
+    }
+
+    /**
+     * Points the destination path at content that is already stored, without writing it again.
+     *
+     * @return as for {@link #commit}, or {@code null} when no object has this digest
+     */
+    public Path commitExisting(byte[] digest, Path destination, String relativePath, FileInfo source)
+            throws IOException {
+        String hash = HexFormat.of().formatHex(digest);
+        Path object = objectPath(hash);
+        // Objects are never removed, so one found here stays
+        if (!Files.exists(object)) {
+            return null;
+        }
+
+        duplicatesFound.incrementAndGet();
+        bytesSaved.addAndGet(source.getSize());
+        writesSkipped.addAndGet(source.getSize());
+        return place(hash, object, destination, relativePath, source);
+    }
+
+    private Path objectPath(String hash) {
+        return objectsDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path place(String hash, Path object, Path destination, String relativePath, FileInfo source)
+            throws IOException {
+        if (linksSupported && link(destination, object)) {
+            record(relativePath, new ManifestEntry(hash, source.getSize(), source.getLastModified(), true));
+            return destination;
+        }
+        record(relativePath, new ManifestEntry(hash, source.getSize(), source.getLastModified(), false));
+        return object;
+    }
+
+    private synchronized boolean storeObject(Path tempFile, Path object) throws IOException {
+        // A rename may silently replace an existing object, which would split its hard links
+        if (Files.exists(object)) {
+            Files.delete(tempFile);
+            return false;
+        }
+        Files.move(tempFile, object);
+        return true;
+    }
+
+    /**
+     * Hard links the destination to the object. Once the object has as many links as the file
+     * system allows, the destination links to a numbered copy of it instead, {@code <hash>.1}
+     * and so on, each starting with links to spare.
+     *
+     * @return {@code false} when the destination does not support hard links
+     */
+    private boolean link(Path destination, Path object) throws IOException {
+        Files.deleteIfExists(destination);
+        Path target = object;
+        for (int copy = 1; ; copy++) {
+            try {
+                Files.createLink(destination, target);
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return linksUnsupported();
+            } catch (FileSystemException e) {
+                if (isTooManyLinks(e)) {
+                    target = objectCopy(object, copy);
+                } else if (isLinkUnsupported(e)) {
+                    return linksUnsupported();
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private boolean linksUnsupported() {
+        logger.info("Destination does not support hard links, recording paths in {}", manifestPath);
+        linksSupported = false;
+        return false;
+    }
+
+    private synchronized Path objectCopy(Path object, int copy) throws IOException {
+        Path target = object.resolveSibling(object.getFileName() + "." + copy);
+        if (!Files.exists(target)) {
+            Path temp = createTempFile();
+            Files.copy(object, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target);
+            logger.debug("Object {} has as many links as the destination allows, continuing in {}", object, target);
+        }
+        return target;
+    }
+
+    // The JDK only reports the OS error as text: EMLINK, or ERROR_TOO_MANY_LINKS on Windows
+    private static boolean isTooManyLinks(FileSystemException e) {
+        String reason = e.getReason();
+        return reason != null && (reason.contains("Too many links") || reason.contains("more links"));
+    }
+
+    // EOPNOTSUPP, or what FAT and exFAT report instead: EPERM on Linux, ERROR_INVALID_FUNCTION on Windows
+    private static boolean isLinkUnsupported(FileSystemException e) {
+        String reason = e.getReason();
+        return reason != null && (reason.contains("not supported") || reason.contains("Operation not permitted")
+                || reason.contains("Incorrect function"));
+    }
+
+    private synchronized void record(String relativePath, ManifestEntry entry) throws IOException {
+        BufferedWriter writer;
+        if (entry.linked()) {
+            if (linksWriter == null) {
+                linksWriter = Files.newBufferedWriter(linksPath, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer = linksWriter;
+        } else {
+            if (manifestWriter == null) {
+                manifestWriter = Files.newBufferedWriter(manifestPath, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer = manifestWriter;
+        }
+        writer.write(entry.hash() + "\t" + entry.size() + "\t" + entry.lastModified() + "\t" + relativePath);
+        writer.newLine();
+        manifest.put(relativePath, entry);
+        storedSizes.add(entry.size());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (manifestWriter != null) {
+                manifestWriter.close();
+            }
+        } finally {
+            if (linksWriter != null) {
+                linksWriter.close();
+            }
+        }
+        logger.info("Dedup store: {} new objects, {} duplicates, {} bytes of capacity saved, {} bytes of writes skipped",
+                objectsStored.get(), duplicatesFound.get(), bytesSaved.get(), writesSkipped.get());
+    }
+}
@@ -0,0 +1,163 @@
+package com.backup.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Updates an existing destination file in place, rewriting only the blocks whose content differs
+ * from the source. Block hashes of the destination are computed on a separate thread while the
+ * source streams in, so the run is bound by the network read rather than by writes to the drive.
+ */
+class DeltaTransfer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaTransfer.class);
+
+    private final BufferPool pool;
+    private final ExecutorService executor;
+    private final RateGovernor governor;
+    private final int pipelineDepth;
+
+    DeltaTransfer(BufferPool pool, ExecutorService executor, RateGovernor governor, int pipelineDepth) {
+        this.pool = pool;
+        this.executor = executor;
+        this.governor = governor;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @param checksum fed every source block, or {@code null}
+     * @return the number of bytes actually written to the destination
+     */
+    long apply(InputStream source, long sourceSize, Path destination, ContentChecksum checksum) throws IOException {
+        int blockSize = pool.getBufferSize();
+
+        // An interrupted update must not look current to the next run's size and date check
+        Files.setLastModifiedTime(destination, FileTime.fromMillis(0));
+
+        try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long destinationSize = channel.size();
+            int destinationBlocks = (int) ((destinationSize + blockSize - 1) / blockSize);
+
+            List<CompletableFuture<byte[]>> destinationHashes = new ArrayList<>(destinationBlocks);
+            for (int i = 0; i < destinationBlocks; i++) {
+                destinationHashes.add(new CompletableFuture<>());
+            }
+
+            // Taken before the pipe starts: a hasher waiting on the pool while the pipe waits on the
+            // hasher would never finish. It reads through its own channel, so cancelling it cannot
+            // close the one being written.
+            ByteBuffer hashBuffer = pool.acquire();
+            // Whoever claims the buffer releases it: the hasher once done, or the cancel if it never ran
+            AtomicBoolean hashBufferClaimed = new AtomicBoolean();
+            Future<?> hasher;
+            try {
+                hasher = executor.submit(() -> {
+                    if (hashBufferClaimed.compareAndSet(false, true)) {
+                        hashBlocks(destination, destinationSize, blockSize, hashBuffer, destinationHashes);
+                    }
+                });
+            } catch (RuntimeException e) {
+                pool.release(hashBuffer);
+                throw e;
+            }
+
+            MessageDigest digest = FileCopier.sha256();
+            long[] position = {0};
+            long[] rewritten = {0};
+
+            try {
+                new StreamPipe(pool, pipelineDepth, governor).transfer(source, executor, block -> {
+                    int blockIndex = (int) (position[0] / blockSize);
+                    int length = block.remaining();
+                    if (checksum != null) {
+                        checksum.update(block);
+                    }
+
+                    boolean unchanged = false;
+                    if (blockIndex < destinationBlocks
+                            && length == Math.min(blockSize, destinationSize - position[0])) {
+                        digest.update(block.duplicate());
+                        unchanged = MessageDigest.isEqual(digest.digest(), awaitHash(destinationHashes.get(blockIndex)));
+                    }
+
+                    if (!unchanged) {
+                        governor.acquireWrite(length);
+                        long offset = position[0];
+                        while (block.hasRemaining()) {
+                            offset += channel.write(block, offset);
+                        }
+                        rewritten[0] += length;
+                    }
+                    position[0] += length;
+                });
+            } finally {
+                hasher.cancel(true);
+                if (hashBufferClaimed.compareAndSet(false, true)) {
+                    pool.release(hashBuffer);
+                }
+            }
+
+            channel.truncate(sourceSize);
+            logger.debug("Delta update of {}: rewrote {} of {} bytes", destination, rewritten[0], sourceSize);
+            Files.setLastModifiedTime(destination, FileTime.fromMillis(System.currentTimeMillis()));
+            return rewritten[0];
+        }
+    }
+
+    /**
+     * Hashes the destination's blocks into {@code hashes}, then releases {@code buffer} to the pool.
+     */
+    private void hashBlocks(Path destination, long size, int blockSize, ByteBuffer buffer,
+                            List<CompletableFuture<byte[]>> hashes) {
+        MessageDigest digest = FileCopier.sha256();
+        int block = 0;
+
+        try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.READ)) {
+            for (; block < hashes.size(); block++) {
+                long position = (long) block * blockSize;
+                buffer.clear().limit((int) Math.min(blockSize, size - position));
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                    // Keep reading until the block is full or the file ends
+                }
+                buffer.flip();
+                digest.update(buffer);
+                hashes.get(block).complete(digest.digest());
+            }
+        } catch (Exception e) {
+            for (; block < hashes.size(); block++) {
+                hashes.get(block).completeExceptionally(e);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static byte[] awaitHash(CompletableFuture<byte[]> hash) throws IOException {
+        try {
+            return hash.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Delta update interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not hash destination block: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Catalog of the files already backed up to a destination drive, so incremental runs compare the
+ * source listing against memory instead of stat-ing every file on slow FAT/exFAT media.
+ * <p>
+ * Entries are keyed by a 64-bit hash of the relative path and held in primitive open-addressing
+ * arrays. A trusted catalog is appended to as copies complete; once it is older than the rescan
+ * interval, or cannot be read, the run falls back to checking the drive and rebuilds it from scratch.
+ */
+public class DestinationCatalog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DestinationCatalog.class);
+
+    public static final String CATALOG_FILE_NAME = ".backup-catalog";
+    private static final int MAGIC = 0x43415447;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int RECORD_LENGTH = 32;
+    // Size recorded for a file removed from the destination
+    private static final long REMOVED = -1;
+
+    private final Path catalogPath;
+    private final boolean trusted;
+    private long lastFullScan;
+
+    private long[] keys;
+    private long[] sizes;
+    private long[] modified;
+    private long[] checksums;
+    private int count;
+    private long recordsOnDisk;
+
+    private DataOutputStream appendOutput;
+
+    public DestinationCatalog(Path destinationRoot, Duration rescanInterval) {
+        this.catalogPath = destinationRoot.resolve(CATALOG_FILE_NAME);
+        allocate(1024);
+
+        long scanned = 0;
+        boolean loaded = false;
+        try {
+            if (Files.exists(catalogPath)) {
+                scanned = load();
+                loaded = true;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read destination catalog {}, rescanning destination", catalogPath, e);
+        }
+
+        boolean fresh = loaded && System.currentTimeMillis() - scanned < rescanInterval.toMillis();
+        if (!fresh) {
+            // Rebuild from what this run confirms on the drive
+            allocate(1024);
+            count = 0;
+        }
+
+        this.trusted = fresh;
+        this.lastFullScan = fresh ? scanned : 0;
+        logger.info("Destination catalog {}: {} entries, {}", catalogPath, count,
+                trusted ? "trusted" : "full rescan");
+    }
+
+    /**
+     * Whether lookups can replace file system checks. An untrusted catalog is only being rebuilt.
+     */
+    public boolean isTrusted() {
+        return trusted;
+    }
+
+    /**
+     * Stamps a rebuilt catalog as trustworthy. Until a rescan has visited the whole tree, the
+     * partial catalog is saved but the next run still checks the drive.
+     */
+    public synchronized void markScanComplete() {
+        if (!trusted) {
+            lastFullScan = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized boolean isCurrent(String relativePath, FileInfo source) {
+        int slot = find(hash(relativePath));
+        return keys[slot] != 0 && sizes[slot] == source.getSize() && modified[slot] >= source.getLastModified();
+    }
+
+    public void record(String relativePath, FileInfo source) throws IOException {
+        record(relativePath, source, 0);
+    }
+
+    /**
+     * @param checksum CRC32C of the content copied, or 0 when it is not known
+     */
+    public synchronized void record(String relativePath, FileInfo source, long checksum) throws IOException {
+        append(hash(relativePath), source.getSize(), source.getLastModified(), checksum);
+    }
+
+    /**
+     * Drops a file removed from the destination, so it is copied again should it reappear on the source.
+     */
+    public synchronized void forget(String relativePath) throws IOException {
+        long key = hash(relativePath);
+        if (keys[find(key)] != 0) {
+            append(key, REMOVED, 0, 0);
+        }
+    }
+
+    private void append(long key, long size, long lastModified, long checksum) throws IOException {
+        put(key, size, lastModified, checksum);
+
+        if (trusted) {
+            if (appendOutput == null) {
+                appendOutput = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(catalogPath, StandardOpenOption.APPEND)));
+            }
+            writeRecord(appendOutput, key, size, lastModified, checksum);
+            recordsOnDisk++;
+        }
+    }
+
+    private long load() throws IOException {
+        long fileLength = Files.size(catalogPath);
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogPath)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unrecognized catalog format");
+            }
+            long scanned = input.readLong();
+
+            long records = (fileLength - HEADER_LENGTH) / RECORD_LENGTH;
+            for (long i = 0; i < records; i++) {
+                put(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+            }
+            recordsOnDisk = records;
+
+            // Drop a record that was only partly appended when a previous run stopped
+            long validLength = HEADER_LENGTH + records * RECORD_LENGTH;
+            if (fileLength > validLength) {
+                try (FileChannel channel = FileChannel.open(catalogPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+            return scanned;
+        } catch (EOFException e) {
+            throw new IOException("Truncated catalog", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (appendOutput != null) {
+            appendOutput.close();
+            appendOutput = null;
+        }
+
+        // Rewrite after a rescan, or once superseded records dominate the file
+        if (!trusted || recordsOnDisk > 2L * count) {
+            writeCompacted();
+        }
+    }
+
+    private void writeCompacted() throws IOException {
+        Path temp = catalogPath.resolveSibling(CATALOG_FILE_NAME + ".tmp");
+        long written = 0;
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(lastFullScan);
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0 && sizes[slot] != REMOVED) {
+                    writeRecord(output, keys[slot], sizes[slot], modified[slot], checksums[slot]);
+                    written++;
+                }
+            }
+        }
+
+        Files.move(temp, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordsOnDisk = written;
+        logger.debug("Wrote destination catalog with {} entries", written);
+    }
+
+    private static void writeRecord(DataOutputStream output, long key, long size, long lastModified, long checksum)
+            throws IOException {
+        output.writeLong(key);
+        output.writeLong(size);
+        output.writeLong(lastModified);
+        output.writeLong(checksum);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        sizes = new long[capacity];
+        modified = new long[capacity];
+        checksums = new long[capacity];
+    }
+
+    private void put(long key, long size, long lastModified, long checksum) {
+        if ((count + 1) * 4L > keys.length * 3L) {
+            grow();
+        }
+
+        int slot = find(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            count++;
+        }
+        sizes[slot] = size;
+        modified[slot] = lastModified;
+        checksums[slot] = checksum;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldSizes = sizes;
+        long[] oldModified = modified;
+        long[] oldChecksums = checksums;
+
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                sizes[slot] = oldSizes[i];
+                modified[slot] = oldModified[i];
+                checksums[slot] = oldChecksums[i];
+            }
+        }
+    }
+
+    /**
+     * Linear probe for the key's slot, or the empty slot where it would go.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 64-bit FNV-1a over the path characters with a final avalanche; zero marks an empty slot.
+     */
+    static long hash(String relativePath) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < relativePath.length(); i++) {
+            h ^= relativePath.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,179 @@
+package com.backup.service;
+
+import com.backup.model.Configuration;
+import com.backup.model.DurabilityPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies the configured {@link DurabilityPolicy} to files committed on the destination drive.
+ * Batched syncs reopen the committed files and their directories, so one slow cache flush on a
+ * cheap USB stick covers many small files. Work that must only be recorded once the data is on
+ * the drive, such as journal entries, runs after the sync that covers it.
+ */
+class DestinationSync {
+
+    private static final Logger logger = LoggerFactory.getLogger(DestinationSync.class);
+
+    private final DurabilityPolicy policy;
+    private final long batchBytes;
+    private final int batchFiles;
+    private volatile boolean syncDirectories;
+    private final List<Flushable> stores = new ArrayList<>();
+
+    private List<Path> pendingFiles = new ArrayList<>();
+    private Set<Path> pendingDirectories = new LinkedHashSet<>();
+    private List<CopyEngine.CopyTask> pendingCallbacks = new ArrayList<>();
+    private long pendingBytes;
+    private int pendingStored;
+
+    DestinationSync(Configuration config) {
+        this.policy = config.getDurabilityPolicy();
+        this.batchBytes = config.getSyncBatchBytes();
+        this.batchFiles = Math.max(1, config.getSyncBatchFiles());
+        this.syncDirectories = config.isSyncDirectories();
+    }
+
+    /**
+     * Records a file whose content is in place under its final name. With {@link DurabilityPolicy#PER_FILE}
+     * the writer has already forced the content before renaming it.
+     */
+    void committed(Path file, long bytes, CopyEngine.CopyTask onDurable) throws IOException {
+        switch (policy) {
+            case NONE -> onDurable.run();
+            case PER_FILE -> {
+                syncDirectory(file.getParent());
+                onDurable.run();
+            }
+            case BATCHED -> {
+                boolean full;
+                synchronized (this) {
+                    pendingFiles.add(file);
+                    pendingDirectories.add(file.getParent());
+                    pendingCallbacks.add(onDurable);
+                    pendingBytes += bytes;
+                    full = pendingBytes >= batchBytes || pendingFiles.size() + pendingStored >= batchFiles;
+                }
+                if (full) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Has every batch flush a store that keeps its files open, such as the pack store, before
+     * running the callbacks of content {@linkplain #stored stored} in it.
+     */
+    synchronized void include(Flushable store) {
+        stores.add(store);
+    }
+
+    /**
+     * Records content appended to an {@linkplain #include included} store, which forces itself
+     * with {@link DurabilityPolicy#PER_FILE}.
+     */
+    void stored(long bytes, CopyEngine.CopyTask onDurable) throws IOException {
+        if (policy != DurabilityPolicy.BATCHED) {
+            onDurable.run();
+            return;
+        }
+
+        boolean full;
+        synchronized (this) {
+            pendingCallbacks.add(onDurable);
+            pendingBytes += bytes;
+            pendingStored++;
+            full = pendingBytes >= batchBytes || pendingFiles.size() + pendingStored >= batchFiles;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Records a directory or hard link created on the destination, whose entry lives in its parent.
+     */
+    void entryCreated(Path entry) throws IOException {
+        if (policy == DurabilityPolicy.PER_FILE) {
+            syncDirectory(entry.getParent());
+        } else if (policy == DurabilityPolicy.BATCHED) {
+            synchronized (this) {
+                pendingDirectories.add(entry.getParent());
+            }
+        }
+    }
+
+    /**
+     * Syncs everything committed since the last batch.
+     */
+    void flush() throws IOException {
+        List<Path> files;
+        Set<Path> directories;
+        List<CopyEngine.CopyTask> callbacks;
+        List<Flushable> flushed;
+        synchronized (this) {
+            flushed = List.copyOf(stores);
+            files = pendingFiles;
+            directories = pendingDirectories;
+            callbacks = pendingCallbacks;
+            pendingFiles = new ArrayList<>();
+            pendingDirectories = new LinkedHashSet<>();
+            pendingCallbacks = new ArrayList<>();
+            pendingBytes = 0;
+            pendingStored = 0;
+        }
+
+        for (Path file : files) {
+            force(file);
+        }
+        if (policy == DurabilityPolicy.BATCHED) {
+            for (Flushable store : flushed) {
+                store.flush();
+            }
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        for (CopyEngine.CopyTask callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Forces a file's content and metadata to the drive.
+     */
+    static void force(Path file) throws IOException {
+        // Opened for writing: Windows only flushes handles with write access
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            logger.debug("File removed before it was synced: {}", file);
+        }
+    }
+
+    private void syncDirectory(Path directory) {
+        if (!syncDirectories || directory == null) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows cannot open directories as channels
+            logger.info("Destination does not support directory sync, relying on file syncs only");
+            syncDirectories = false;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Source directories as the last successful run saw them, so unchanged subtrees are walked
+ * without listing them again. Each directory is stamped with its modification time and entry
+ * count; a directory whose modification time still matches is not listed, only its
+ * subdirectories are walked, and its files are taken as backed up by that run.
+ * <p>
+ * A directory's modification time changes when entries are added, removed or renamed in it, but
+ * not when a file is rewritten in place, so every few runs a full rescan lists everything again.
+ * A full rescan that finds an unchanged stamp over a changed entry count shows the share does not
+ * keep directory times, and stamps are not trusted on that destination any more.
+ */
+class DirectoryStamps {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryStamps.class);
+
+    static final String STAMPS_FILE_NAME = ".backup-directories";
+    private static final int MAGIC = 0x44495253;
+    private static final int VERSION = 1;
+
+    private record Stamp(long lastModified, int entryCount, String[] names, String[] paths) {
+    }
+
+    private final Path stampsPath;
+    private final NetworkFileService networkService;
+    private final String fingerprint;
+    private final Map<String, Stamp> previous = new HashMap<>();
+    private final boolean fullScan;
+    private int runsSinceFullScan;
+    private volatile boolean reliable = true;
+
+    private final Map<String, Stamp> current = new ConcurrentHashMap<>();
+    // Modification times seen in parent listings, saving a request per changed directory
+    private final Map<String, Long> observed = new ConcurrentHashMap<>();
+    private final Set<String> reused = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param fingerprint what the stamps depend on besides the source, such as the storage layout;
+     *                    stamps saved under another fingerprint are discarded
+     * @param allowReuse  whether this run may skip listings at all, rather than only record stamps
+     */
+    DirectoryStamps(Path destinationRoot, NetworkFileService networkService, String fingerprint,
+                    int fullRescanRuns, boolean allowReuse) {
+        this.stampsPath = destinationRoot.resolve(STAMPS_FILE_NAME);
+        this.networkService = networkService;
+        this.fingerprint = fingerprint;
+
+        boolean loaded = false;
+        try {
+            if (Files.exists(stampsPath)) {
+                loaded = load();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read directory stamps {}, listing every directory", stampsPath, e);
+            previous.clear();
+            runsSinceFullScan = 0;
+            reliable = true;
+        }
+
+        this.fullScan = !loaded || !reliable || !allowReuse || runsSinceFullScan + 1 >= fullRescanRuns;
+        if (!reliable) {
+            logger.warn("Source directory times proved unreliable on an earlier run, listing every directory");
+        }
+        logger.info("Directory stamps {}: {} directories, {}", stampsPath, previous.size(),
+                fullScan ? "full rescan" : "reusing unchanged listings");
+    }
+
+    private boolean load() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(stampsPath)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a directory stamps file");
+            }
+            if (!input.readUTF().equals(fingerprint)) {
+                logger.info("Backup settings changed since directory stamps were saved, listing every directory");
+                return false;
+            }
+            runsSinceFullScan = input.readInt();
+            reliable = input.readBoolean();
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                long lastModified = input.readLong();
+                int entryCount = input.readInt();
+                String[] names = new String[input.readInt()];
+                String[] paths = new String[names.length];
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = input.readUTF();
+                    paths[j] = input.readUTF();
+                }
+                previous.put(path, new Stamp(lastModified, entryCount, names, paths));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists a directory, or returns only its subdirectories when it is unchanged since the last
+     * run. Stands in for {@link NetworkFileService#listFiles} in the tree walk.
+     */
+    List<FileInfo> list(String path) throws IOException {
+        // Stamped before listing, so a change made during the listing shows next run
+        Long seen = observed.remove(path);
+        long lastModified = seen != null ? seen : networkService.getFileInfo(path).getLastModified();
+        Stamp stamp = previous.get(path);
+
+        if (!fullScan && stamp != null && stamp.lastModified() == lastModified) {
+            reused.add(path);
+            current.put(path, stamp);
+            return subdirectories(stamp);
+        }
+
+        List<FileInfo> entries = networkService.listFiles(path);
+        if (stamp != null && stamp.lastModified() == lastModified && stamp.entryCount() != entries.size() && reliable) {
+            logger.warn("Directory {} changed without a new modification time, no longer trusting directory stamps", path);
+            reliable = false;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (FileInfo entry : entries) {
+            if (entry.isDirectory()) {
+                names.add(entry.getName());
+                paths.add(entry.getPath());
+                observed.put(entry.getPath(), entry.getLastModified());
+            }
+        }
+        current.put(path, new Stamp(lastModified, entries.size(),
+                names.toArray(String[]::new), paths.toArray(String[]::new)));
+        return entries;
+    }
+
+    private List<FileInfo> subdirectories(Stamp stamp) {
+        List<FileInfo> entries = new ArrayList<>(stamp.names().length);
+        for (int i = 0; i < stamp.names().length; i++) {
+            FileInfo info = new FileInfo();
+            info.setName(stamp.names()[i]);
+            info.setPath(stamp.paths()[i]);
+            info.setDirectory(true);
+            entries.add(info);
+        }
+        return entries;
+    }
+
+    /**
+     * Whether a directory was walked from its stamp, so the entries handed to the visitor are only
+     * its subdirectories.
+     */
+    boolean isReused(String path) {
+        return reused.contains(path);
+    }
+
+    /**
+     * Saves the stamps of the directories this run walked. Only a successful run may save them,
+     * since a reused directory's files are taken as backed up.
+     */
+    synchronized void save() throws IOException {
+        Path temp = stampsPath.resolveSibling(stampsPath.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(fingerprint);
+            output.writeInt(fullScan && reliable ? 0 : runsSinceFullScan + 1);
+            output.writeBoolean(reliable);
+            output.writeInt(current.size());
+            for (Map.Entry<String, Stamp> entry : current.entrySet()) {
+                Stamp stamp = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeLong(stamp.lastModified());
+                output.writeInt(stamp.entryCount());
+                output.writeInt(stamp.names().length);
+                for (int i = 0; i < stamp.names().length; i++) {
+                    output.writeUTF(stamp.names()[i]);
+                    output.writeUTF(stamp.paths()[i]);
+                }
+            }
+        }
+        try {
+            Files.move(temp, stampsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, stampsPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.info("Saved stamps of {} directories, {} walked without listing", current.size(), reused.size());
+    }
+}
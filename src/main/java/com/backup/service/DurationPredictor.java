@@ -0,0 +1,118 @@
+package com.backup.service;
+
+import com.backup.model.History;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Predicts how long the copy phase of a backup takes from earlier runs in the history, modelled as
+ * a fixed cost per file plus a cost per byte. The copy phase starts when the first totals are
+ * known, so a separate analysis walk is neither fitted nor predicted. The two costs are fitted by
+ * weighted least squares over the latest successful runs between the same source and
+ * destination, recent runs counting most; without such runs, runs from the same source or any
+ * runs stand in.
+ * <p>
+ * While a run goes, the prediction for the work left is scaled by how the run has compared with
+ * the model so far, so a slower network or drive than usual shows up in the estimate.
+ */
+public class DurationPredictor {
+
+    private static final int MAX_RUNS = 20;
+    private static final double DECAY = 0.85;
+    // Predicted seconds of work the live correction is weighed against, as a share of the whole run
+    private static final double CORRECTION_PRIOR = 0.1;
+
+    private final double secondsPerFile;
+    private final double secondsPerByte;
+
+    DurationPredictor(double secondsPerFile, double secondsPerByte) {
+        this.secondsPerFile = secondsPerFile;
+        this.secondsPerByte = secondsPerByte;
+    }
+
+    /**
+     * @return the fitted model, or {@code null} when no earlier run recorded its copy duration
+     */
+    public static DurationPredictor fit(List<History> histories, String sourcePath, String destinationPath) {
+        List<History> usable = histories.stream()
+                .filter(run -> run.isSuccessful() && run.getCopyMillis() > 0
+                        && (run.getFilesCopied() > 0 || run.getTotalSize() > 0))
+                .sorted(Comparator.comparing(History::getTimestamp, Comparator.nullsLast(Comparator.reverseOrder())))
+                .toList();
+
+        List<History> runs = usable.stream()
+                .filter(run -> Objects.equals(run.getSourcePath(), sourcePath)
+                        && Objects.equals(run.getDestinationPath(), destinationPath))
+                .toList();
+        if (runs.isEmpty()) {
+            runs = usable.stream().filter(run -> Objects.equals(run.getSourcePath(), sourcePath)).toList();
+        }
+        if (runs.isEmpty()) {
+            runs = usable;
+        }
+        return runs.isEmpty() ? null : fit(runs.subList(0, Math.min(MAX_RUNS, runs.size())));
+    }
+
+    /**
+     * Solves the normal equations of {@code seconds = files * a + bytes * b} for runs given newest first.
+     */
+    private static DurationPredictor fit(List<History> runs) {
+        double sff = 0, sfb = 0, sbb = 0, sft = 0, sbt = 0;
+        double weight = 1;
+        for (History run : runs) {
+            double files = run.getFilesCopied();
+            double bytes = run.getTotalSize();
+            double seconds = run.getCopyMillis() / 1000.0;
+            sff += weight * files * files;
+            sfb += weight * files * bytes;
+            sbb += weight * bytes * bytes;
+            sft += weight * files * seconds;
+            sbt += weight * bytes * seconds;
+            weight *= DECAY;
+        }
+
+        double determinant = sff * sbb - sfb * sfb;
+        if (determinant > 1e-9 * sff * sbb) {
+            double perFile = (sft * sbb - sbt * sfb) / determinant;
+            double perByte = (sbt * sff - sft * sfb) / determinant;
+            if (perFile >= 0 && perByte >= 0) {
+                return new DurationPredictor(perFile, perByte);
+            }
+        }
+
+        // A single run, or runs too alike to tell the costs apart: charge everything to one of them
+        return sbb > 0
+                ? new DurationPredictor(0, sbt / sbb)
+                : new DurationPredictor(sft / sff, 0);
+    }
+
+    public long predictSeconds(long files, long bytes) {
+        return Math.round(seconds(files, bytes));
+    }
+
+    /**
+     * Seconds left in a run whose copy phase has taken {@code elapsedSeconds} to get through part of
+     * its totals.
+     */
+    public long remainingSeconds(long filesDone, long bytesDone, long totalFiles, long totalBytes,
+                                 double elapsedSeconds) {
+        double predictedDone = seconds(filesDone, bytesDone);
+        double predictedLeft = seconds(Math.max(0, totalFiles - filesDone), Math.max(0, totalBytes - bytesDone));
+        double prior = Math.max(1, CORRECTION_PRIOR * (predictedDone + predictedLeft));
+        // Early in the run the model dominates; later, how the run actually went
+        double correction = (elapsedSeconds + prior) / (predictedDone + prior);
+        return Math.round(predictedLeft * correction);
+    }
+
+    private double seconds(long files, long bytes) {
+        return files * secondsPerFile + bytes * secondsPerByte;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f ms per file, %.1f MB/s", secondsPerFile * 1000,
+                secondsPerByte > 0 ? 1 / secondsPerByte / (1024 * 1024) : Double.POSITIVE_INFINITY);
+    }
+}
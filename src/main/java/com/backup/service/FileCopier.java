@@ -0,0 +1,597 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+import com.backup.model.Configuration;
+import com.backup.model.DurabilityPolicy;
+import com.backup.model.FileInfo;
+import jcifs.SmbRandomAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies a single remote file to the destination drive. Files on a locally mounted share are
+ * copied channel to channel with {@link FileChannel#transferTo}, which the JDK maps to
+ * {@code copy_file_range}/{@code sendfile} where available. SMB files are streamed through a
+ * {@link StreamPipe} so the SMB read and the destination write overlap. Files above the large-file
+ * threshold are split into segments that are read concurrently through separate SMB handles and
+ * written at their offset in the destination, so one file can keep several reads outstanding.
+ * Large files that already exist on the destination can instead be updated block by block with
+ * a {@link DeltaTransfer}.
+ * <p>
+ * When a {@link CheckpointJournal.Checkpoint} is given, large files are forced to the drive and
+ * journaled every checkpoint interval, and a copy interrupted by an earlier run picks up at its
+ * last checkpoint instead of starting over.
+ * <p>
+ * Copies are written to a hidden partial file next to the destination and renamed over it once
+ * complete, so an interrupted copy never leaves a file that looks current. Delta updates are the
+ * exception: they rewrite the destination in place and mark it stale while they run.
+ * <p>
+ * With compression on, files are stored as {@code <name>.gz} through a {@link CompressedTransfer},
+ * unless their extension or a sample of their first block shows they would not shrink.
+ * <p>
+ * A {@link ContentChecksum} passed to a copy is fed the source content as it is written. Segmented
+ * copies checksum each segment and combine the CRCs; only when SHA-256 is wanted or the copy was
+ * resumed is the finished file read back, from the destination drive rather than the NAS.
+ */
+public class FileCopier implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileCopier.class);
+
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String COMPRESSED_SUFFIX = ".gz";
+
+    private final NetworkFileService networkService;
+    private final long largeFileThreshold;
+    private final long segmentSize;
+    private final int segmentStreams;
+    private final int pipelineDepth;
+    private final BufferPool bufferPool;
+    private final long deltaThreshold;
+    private final long checkpointInterval;
+    private final boolean syncEachFile;
+    private final ExecutorService readExecutor;
+    private final ExecutorService compressExecutor;
+    private final CompressedTransfer.Deflaters deflaters;
+    private final RateGovernor governor;
+    private final ReadMonitor readMonitor;
+
+    public FileCopier(NetworkFileService networkService, Configuration config) {
+        this.networkService = networkService;
+        this.largeFileThreshold = config.getLargeFileThreshold();
+        this.segmentSize = Math.max(AppConstants.MAX_BUFFER_SIZE, config.getSegmentSize());
+        this.segmentStreams = Math.max(1, config.getSegmentStreams());
+        this.pipelineDepth = config.getPipelineDepth();
+        this.bufferPool = new BufferPool(config.getBufferCount(), config.getBufferSize());
+        // Snapshot files may share their content with older snapshots, so they are never updated in place
+        this.deltaThreshold = config.isDeltaTransfer() && !config.isSnapshots()
+                ? config.getDeltaThreshold()
+                : Long.MAX_VALUE;
+        this.checkpointInterval = Math.max(segmentSize, config.getCheckpointInterval());
+        this.syncEachFile = config.getDurabilityPolicy() == DurabilityPolicy.PER_FILE;
+        this.readExecutor = Executors.newCachedThreadPool(CopyEngine.namedThreads("backup-read"));
+        this.compressExecutor = config.isCompression()
+                ? Executors.newFixedThreadPool(Math.max(1, config.getCompressionThreads()),
+                        CopyEngine.namedThreads("backup-compress"))
+                : null;
+        this.deflaters = config.isCompression() ? new CompressedTransfer.Deflaters(config.getCompressionLevel()) : null;
+        this.governor = networkService.getRateGovernor();
+        this.readMonitor = networkService.getReadMonitor();
+    }
+
+    /**
+     * @param checkpoint journal entry for this file, or {@code null} when runs are not resumable
+     * @param checksum receives the content checksums, or {@code null}
+     * @return the path written, which is the compressed name when the file was compressed
+     */
+    public Path copy(FileInfo source, Path destination, CheckpointJournal.Checkpoint checkpoint,
+                     ContentChecksum checksum) throws IOException {
+        if (compressExecutor != null) {
+            if (isCompressible(source.getName())) {
+                return copyCompressed(source, destination, checksum);
+            }
+            // A previous run may have stored this file compressed
+            Files.deleteIfExists(compressedPath(destination));
+        }
+
+        long size = source.getSize();
+        if (size < largeFileThreshold) {
+            checkpoint = null;
+        }
+        Path partial = partialPath(destination);
+        long resumeOffset = resumeOffset(checkpoint, partial);
+
+        if (resumeOffset == 0 && size >= deltaThreshold && Files.isRegularFile(destination)) {
+            copyDelta(source, destination, checksum);
+            if (syncEachFile) {
+                DestinationSync.force(destination);
+            }
+            return destination;
+        }
+
+        if (NetworkFileService.isLocalPath(source.getPath())) {
+            copyLocal(Path.of(source.getPath()), partial, checkpoint, resumeOffset, checksum);
+        } else if ((segmentStreams > 1 || checkpoint != null) && size >= largeFileThreshold && size > segmentSize) {
+            copySegmented(source, partial, checkpoint, resumeOffset, checksum);
+        } else {
+            copyStream(source.getPath(), partial, checksum);
+        }
+        moveIntoPlace(partial, destination);
+        return destination;
+    }
+
+    /**
+     * Name under which a compressed copy of the destination is stored.
+     */
+    static Path compressedPath(Path destination) {
+        return destination.resolveSibling(destination.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    private static boolean isCompressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !AppConstants.INCOMPRESSIBLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Compressed files are always streamed: their output offsets do not follow the source, so
+     * they are neither segmented nor resumed. The checksum covers the uncompressed content.
+     */
+    private Path copyCompressed(FileInfo source, Path destination, ContentChecksum checksum) throws IOException {
+        Path partial = partialPath(destination);
+        boolean compressed;
+
+        try (InputStream input = networkService.openFile(source.getPath());
+             FileChannel output = FileChannel.open(partial, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            compressed = new CompressedTransfer(bufferPool, readExecutor, compressExecutor, governor,
+                    deflaters, pipelineDepth).apply(input, output, checksum);
+        }
+
+        Path target = compressed ? compressedPath(destination) : destination;
+        moveIntoPlace(partial, target);
+        // Drop the copy stored in the other form by an earlier run
+        Files.deleteIfExists(compressed ? destination : compressedPath(destination));
+        return target;
+    }
+
+    /**
+     * Hidden sibling that receives a copy until it is complete.
+     */
+    static Path partialPath(Path destination) {
+        return destination.resolveSibling("." + destination.getFileName() + PARTIAL_SUFFIX);
+    }
+
+    private void moveIntoPlace(Path partial, Path destination) throws IOException {
+        if (syncEachFile) {
+            // The content must reach the drive before the rename can
+            DestinationSync.force(partial);
+        }
+
+        try {
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Rewrites only the changed blocks of an existing large destination. This reads the source as a
+     * single stream even when it would qualify for segmented reads: the goal is fewer writes to the drive.
+     */
+    private void copyDelta(FileInfo source, Path destination, ContentChecksum checksum) throws IOException {
+        try (InputStream input = networkService.openFile(source.getPath())) {
+            new DeltaTransfer(bufferPool, readExecutor, governor, pipelineDepth)
+                    .apply(input, source.getSize(), destination, checksum);
+        }
+    }
+
+    /**
+     * Offset at which an interrupted copy of this file can continue, or 0 to copy it whole.
+     */
+    private long resumeOffset(CheckpointJournal.Checkpoint checkpoint, Path destination) throws IOException {
+        if (checkpoint == null || checkpoint.getResumeOffset() == 0 || !Files.isRegularFile(destination)) {
+            return 0;
+        }
+        long offset = Math.min(checkpoint.getResumeOffset(), Files.size(destination));
+        logger.info("Resuming {} at offset {}", destination, offset);
+        return offset;
+    }
+
+    private static FileChannel openDestination(Path destination, long resumeOffset) throws IOException {
+        return resumeOffset > 0
+                ? FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(destination, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void copyLocal(Path source, Path destination, CheckpointJournal.Checkpoint checkpoint,
+                           long resumeOffset, ContentChecksum checksum) throws IOException {
+        governor.acquireReadOp();
+        try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel output = openDestination(destination, resumeOffset)) {
+            long size = input.size();
+            long position = resumeOffset;
+            // transferTo writes at the output channel's own position
+            output.position(position);
+            long chunk = checkpoint != null ? checkpointInterval : Long.MAX_VALUE;
+            if (governor.isBandwidthLimited()) {
+                // Small transfers keep a throttled copy from bursting
+                chunk = bufferPool.getBufferSize();
+            }
+            if (checkpoint != null) {
+                checkpoint.advance(position);
+            }
+            if (checksum != null && position > 0) {
+                checksumWritten(destination, position, checksum);
+            }
+
+            while (position < size) {
+                long start = System.nanoTime();
+                long count = Math.min(chunk, size - position);
+                long transferred = checksum != null
+                        ? copyChecksummed(input, position, count, output, checksum)
+                        : input.transferTo(position, count, output);
+                readMonitor.record(Math.max(0, transferred), System.nanoTime() - start);
+                if (transferred <= 0) {
+                    // The source shrank while it was being copied
+                    break;
+                }
+                position += transferred;
+                governor.acquireRead(transferred);
+                governor.acquireWrite(transferred);
+
+                if (checkpoint != null && position < size) {
+                    output.force(false);
+                    checkpoint.advance(position);
+                }
+            }
+            output.truncate(position);
+        }
+    }
+
+    /**
+     * Copies through a pooled buffer so the checksum sees every byte; the price of skipping
+     * {@code transferTo} is one copy through user space.
+     */
+    private long copyChecksummed(FileChannel input, long position, long count, FileChannel output,
+                                 ContentChecksum checksum) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long copied = 0;
+            while (copied < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - copied));
+                if (input.read(buffer, position + copied) <= 0) {
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                copied += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+            return copied;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Feeds the first {@code length} bytes already on the destination drive to the checksum.
+     */
+    private void checksumWritten(Path file, long length, ContentChecksum checksum) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                if (channel.read(buffer, position) < 0) {
+                    throw new EOFException("Unexpected end of " + file + " at offset " + position);
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += buffer.remaining();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void copyStream(String sourcePath, Path destination, ContentChecksum checksum) throws IOException {
+        try (InputStream input = networkService.openFile(sourcePath);
+             FileChannel output = FileChannel.open(destination, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new StreamPipe(bufferPool, pipelineDepth, governor).transfer(input, output, readExecutor, checksum);
+        }
+    }
+
+    private void copySegmented(FileInfo source, Path destination, CheckpointJournal.Checkpoint checkpoint,
+                               long resumeOffset, ContentChecksum checksum) throws IOException {
+        long size = source.getSize();
+        long segmentCount = (size + segmentSize - 1) / segmentSize;
+        long firstSegment = resumeOffset / segmentSize;
+        int streams = (int) Math.max(1, Math.min(segmentStreams, segmentCount - firstSegment));
+        AtomicLong nextSegment = new AtomicLong(firstSegment);
+        // Segments finish out of order, so each gets its own CRC
+        long[] segmentCrcs = checksum != null && resumeOffset == 0 && !checksum.hasSha256()
+                ? new long[(int) segmentCount]
+                : null;
+
+        logger.debug("Copying {} in {} segments over {} streams", source.getPath(), segmentCount, streams);
+
+        try (FileChannel channel = openDestination(destination, resumeOffset)) {
+            SegmentCheckpoints checkpoints = checkpoint != null
+                    ? new SegmentCheckpoints(checkpoint, channel, size, firstSegment)
+                    : null;
+
+            List<Future<Void>> helpers = new ArrayList<>();
+            for (int i = 1; i < streams; i++) {
+                helpers.add(readExecutor.submit(() -> {
+                    copySegments(source, channel, nextSegment, segmentCount, checkpoints, segmentCrcs);
+                    return null;
+                }));
+            }
+
+            try {
+                // The calling copy worker takes a share of the segments itself
+                copySegments(source, channel, nextSegment, segmentCount, checkpoints, segmentCrcs);
+                for (Future<Void> helper : helpers) {
+                    awaitSegment(helper);
+                }
+            } finally {
+                helpers.forEach(helper -> helper.cancel(true));
+            }
+
+            channel.truncate(size);
+        }
+
+        if (segmentCrcs != null) {
+            long crc = 0;
+            for (int segment = 0; segment < segmentCount; segment++) {
+                crc = ContentChecksum.combineCrc32c(crc, segmentCrcs[segment],
+                        Math.min(segmentSize, size - segment * segmentSize));
+            }
+            checksum.setCrc32c(crc);
+        } else if (checksum != null) {
+            checksumWritten(destination, size, checksum);
+        }
+    }
+
+    private void copySegments(FileInfo source, FileChannel channel, AtomicLong nextSegment, long segmentCount,
+                              SegmentCheckpoints checkpoints, long[] segmentCrcs) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+
+        try (SmbRandomAccess remote = networkService.openRandomAccess(source.getPath())) {
+            InputStream input = asStream(remote);
+            long segment;
+            while ((segment = nextSegment.getAndIncrement()) < segmentCount) {
+                long position = segment * segmentSize;
+                long end = Math.min(position + segmentSize, source.getSize());
+                remote.seek(position);
+                CRC32C crc = segmentCrcs != null ? new CRC32C() : null;
+
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    if (!BufferPool.fill(input, buffer)) {
+                        throw new EOFException("Unexpected end of remote file at offset "
+                                + (position + buffer.position()) + ": " + source.getPath());
+                    }
+
+                    buffer.flip();
+                    if (crc != null) {
+                        crc.update(buffer.duplicate());
+                    }
+                    governor.acquireWrite(buffer.remaining());
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+
+                if (crc != null) {
+                    segmentCrcs[(int) segment] = crc.getValue();
+                }
+
+                if (checkpoints != null) {
+                    checkpoints.segmentWritten(segment);
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Journals the contiguous prefix of written segments. Segments finish out of order, so a
+     * checkpoint never moves past a segment that is still being written.
+     */
+    private final class SegmentCheckpoints {
+        private final CheckpointJournal.Checkpoint checkpoint;
+        private final FileChannel channel;
+        private final long size;
+        private final BitSet written = new BitSet();
+        private long contiguous;
+        private long journaled;
+
+        SegmentCheckpoints(CheckpointJournal.Checkpoint checkpoint, FileChannel channel, long size,
+                           long firstSegment) throws IOException {
+            this.checkpoint = checkpoint;
+            this.channel = channel;
+            this.size = size;
+            this.contiguous = firstSegment;
+            this.journaled = firstSegment * segmentSize;
+            // Marks the file as in flight before any segment lands beyond the journaled offset
+            checkpoint.advance(journaled);
+        }
+
+        synchronized void segmentWritten(long segment) throws IOException {
+            written.set((int) segment);
+            while (written.get((int) contiguous)) {
+                contiguous++;
+            }
+
+            long offset = Math.min(size, contiguous * segmentSize);
+            if (offset - journaled >= checkpointInterval && offset < size) {
+                channel.force(false);
+                checkpoint.advance(offset);
+                journaled = offset;
+            }
+        }
+    }
+
+    /**
+     * Appends a small file to the pack store. Files that fit in a pooled buffer are staged there;
+     * anything larger, or a file that grew since it was listed, is read onto the heap.
+     */
+    public void copyToPack(FileInfo source, PackStore packStore, String relativePath, ContentChecksum checksum)
+            throws IOException {
+        try (InputStream input = networkService.openFile(source.getPath())) {
+            governor.acquireWrite(source.getSize());
+            if (source.getSize() >= bufferPool.getBufferSize()) {
+                storePacked(packStore, relativePath, source, ByteBuffer.wrap(input.readAllBytes()), checksum);
+                return;
+            }
+
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                boolean grown = BufferPool.fill(input, buffer);
+                buffer.flip();
+
+                if (grown) {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    Channels.newChannel(content).write(buffer);
+                    input.transferTo(content);
+                    storePacked(packStore, relativePath, source, ByteBuffer.wrap(content.toByteArray()), checksum);
+                } else {
+                    storePacked(packStore, relativePath, source, buffer, checksum);
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    private static void storePacked(PackStore packStore, String relativePath, FileInfo source, ByteBuffer content,
+                                    ContentChecksum checksum) throws IOException {
+        if (checksum != null) {
+            checksum.update(content);
+        }
+        packStore.store(relativePath, source, content);
+    }
+
+    /**
+     * Streams the file into a temp file in the dedup store, hashing it on the way, and lets the store
+     * keep or discard the content. Every source takes the stream path here: a segmented or
+     * channel-to-channel copy would need a second pass to hash. When the store already holds
+     * content of the same size, the file is hashed without being written first, and linked to a
+     * matching object with no write at all; otherwise it is read a second time.
+     *
+     * @param checksum must include SHA-256, which addresses the content in the store
+     * @return the path holding the content on the destination drive
+     */
+    public Path copyDeduplicated(FileInfo source, DedupStore store, Path destination, String relativePath,
+                                 ContentChecksum checksum) throws IOException {
+        if (store.hasContentOfSize(source.getSize())) {
+            try (InputStream input = networkService.openFile(source.getPath())) {
+                new StreamPipe(bufferPool, pipelineDepth, governor).transfer(input, readExecutor, checksum::update);
+            }
+            Path existing = store.commitExisting(checksum.getSha256(), destination, relativePath, source);
+            if (existing != null) {
+                return existing;
+            }
+            checksum.reset();
+        }
+
+        Path temp = store.createTempFile();
+
+        try (InputStream input = networkService.openFile(source.getPath());
+             FileChannel output = FileChannel.open(temp, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            new StreamPipe(bufferPool, pipelineDepth, governor).transfer(input, output, readExecutor, checksum);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        if (syncEachFile) {
+            DestinationSync.force(temp);
+        }
+        return store.commit(temp, checksum.getSha256(), destination, relativePath, source);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private ByteBuffer acquireBuffer() throws IOException {
+        return bufferPool.acquire();
+    }
+
+    private InputStream asStream(SmbRandomAccess remote) {
+        return governor.throttle(readMonitor.monitor(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return remote.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return remote.read(b, off, len);
+            }
+        }));
+    }
+
+    private void awaitSegment(Future<Void> helper) throws IOException {
+        try {
+            helper.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segmented copy interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Segmented copy failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        readExecutor.shutdownNow();
+        if (compressExecutor != null) {
+            compressExecutor.shutdownNow();
+            // Members still compressing hold deflaters, whose memory is freed once they are back
+            CopyEngine.awaitTermination(compressExecutor);
+            deflaters.close();
+        }
+        logger.info("Copy buffers: {}", bufferPool);
+    }
+}
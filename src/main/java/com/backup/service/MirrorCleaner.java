@@ -0,0 +1,205 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Removes destination entries whose source is gone, for mirror backups. Each destination directory
+ * is diffed against its source listing in one merge pass over both listings sorted by name, and
+ * entries found only on the destination are deleted, or moved to a dated trash area, in batches.
+ * Names are compared ignoring case, as SMB shares and FAT/exFAT drives do, so a file renamed only
+ * in case is never removed from under its fresh copy.
+ */
+class MirrorCleaner {
+
+    private static final Logger logger = LoggerFactory.getLogger(MirrorCleaner.class);
+
+    static final String TRASH_DIR_NAME = ".backup-trash";
+    // Catalogs, journals, stores and the trash itself
+    private static final String INTERNAL_PREFIX = ".backup-";
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER;
+    private static final int BATCH_SIZE = 256;
+
+    private final Path destinationRoot;
+    private final Path trashRun;
+    private final DestinationCatalog catalog;
+
+    private List<Path> pending = new ArrayList<>();
+    private long removed;
+
+    /**
+     * @param trashDays days a trash run is kept, when removed entries go to the trash; otherwise negative
+     */
+    MirrorCleaner(Path destinationRoot, int trashDays, DestinationCatalog catalog) throws IOException {
+        this.destinationRoot = destinationRoot;
+        this.catalog = catalog;
+        Path trash = destinationRoot.resolve(TRASH_DIR_NAME);
+        this.trashRun = trashDays >= 0 ? trash.resolve(NAME_FORMAT.format(LocalDateTime.now())) : null;
+
+        if (trashDays >= 0 && Files.isDirectory(trash)) {
+            pruneTrash(trash, LocalDateTime.now().minusDays(trashDays));
+        }
+    }
+
+    private static void pruneTrash(Path trash, LocalDateTime cutoff) throws IOException {
+        try (DirectoryStream<Path> runs = Files.newDirectoryStream(trash)) {
+            for (Path run : runs) {
+                try {
+                    if (LocalDateTime.parse(run.getFileName().toString(), NAME_FORMAT).isBefore(cutoff)) {
+                        logger.info("Emptying trash from {}", run.getFileName());
+                        deleteTree(run);
+                    }
+                } catch (DateTimeParseException e) {
+                    // Not a trash run
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues every entry of a destination directory that has no counterpart in its source listing.
+     * A partial or compressed copy counts as a counterpart of the file it belongs to.
+     */
+    void reconcile(Path directory, List<FileInfo> sourceEntries) throws IOException {
+        List<String> existing = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                existing.add(entry.getFileName().toString());
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        List<String> expected = new ArrayList<>(sourceEntries.size() * 3);
+        for (FileInfo source : sourceEntries) {
+            // SMB directory names end with a slash
+            String name = source.getName().endsWith("/")
+                    ? source.getName().substring(0, source.getName().length() - 1)
+                    : source.getName();
+            expected.add(name);
+            if (!source.isDirectory()) {
+                expected.add("." + name + FileCopier.PARTIAL_SUFFIX);
+                expected.add(name + FileCopier.COMPRESSED_SUFFIX);
+            }
+        }
+
+        existing.sort(ORDER);
+        expected.sort(ORDER);
+        boolean root = directory.equals(destinationRoot);
+
+        int next = 0;
+        for (String name : existing) {
+            while (next < expected.size() && ORDER.compare(expected.get(next), name) < 0) {
+                next++;
+            }
+            boolean matched = next < expected.size() && ORDER.compare(expected.get(next), name) == 0;
+            if (!matched && !(root && name.startsWith(INTERNAL_PREFIX))) {
+                queue(directory.resolve(name));
+            }
+        }
+    }
+
+    private void queue(Path entry) throws IOException {
+        List<Path> batch = null;
+        synchronized (this) {
+            pending.add(entry);
+            if (pending.size() >= BATCH_SIZE) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if (batch != null) {
+            remove(batch);
+        }
+    }
+
+    /**
+     * Removes everything still queued.
+     */
+    void flush() throws IOException {
+        List<Path> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        remove(batch);
+        if (removed > 0) {
+            logger.info("Mirror removed {} entries no longer on the source{}", removed,
+                    trashRun != null ? ", kept in " + trashRun : "");
+        }
+    }
+
+    private void remove(List<Path> batch) throws IOException {
+        for (Path entry : batch) {
+            if (catalog != null) {
+                forgetTree(entry);
+            }
+
+            if (trashRun != null) {
+                // A rename on the same drive, however large the entry
+                Path target = trashRun.resolve(destinationRoot.relativize(entry));
+                Files.createDirectories(target.getParent());
+                Files.move(entry, target);
+            } else {
+                deleteTree(entry);
+            }
+            logger.debug("Mirror removed {}", entry);
+        }
+
+        synchronized (this) {
+            removed += batch.size();
+        }
+    }
+
+    private void forgetTree(Path entry) throws IOException {
+        Files.walkFileTree(entry, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String relativePath = destinationRoot.relativize(file).toString().replace('\\', '/');
+                catalog.forget(relativePath);
+                if (relativePath.endsWith(FileCopier.COMPRESSED_SUFFIX)) {
+                    // Cataloged under the name of the file it holds
+                    catalog.forget(relativePath.substring(0,
+                            relativePath.length() - FileCopier.COMPRESSED_SUFFIX.length()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteTree(Path entry) throws IOException {
+        Files.walkFileTree(entry, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -3,17 +3,23 @@ package com.backup.service;
 import com.backup.constants.AppConstants;
 import com.backup.exception.NetworkConnectionException;
 import com.backup.model.FileInfo;
-import jcifs.CIFSContext;
-import jcifs.config.PropertyConfiguration;
-import jcifs.context.BaseContext;
+import jcifs.SmbRandomAccess;
 import jcifs.smb.NtlmPasswordAuthenticator;
+import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileInputStream;
+import jcifs.smb.SmbRandomAccessFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -21,33 +27,77 @@ import java.util.Properties;
 public class NetworkFileService {
 
     private static final Logger logger = LoggerFactory.getLogger(NetworkFileService.class);
+    private static final String SMB_SCHEME = "smb://";
 
-    private CIFSContext context;
+    private volatile SmbConnectionPool pool;
+    private NtlmPasswordAuthenticator currentAuth;
+    private String currentShareUrl;
     private String currentHost;
     private int currentPort;
     private String currentUsername;
     private String currentShareName;
+    private final RateGovernor governor;
+    private final ReadMonitor readMonitor = new ReadMonitor();
+    private final SmbCallStats callStats = new SmbCallStats();
+
+    public NetworkFileService() {
+        this(new RateGovernor());
+    }
+
+    public NetworkFileService(RateGovernor governor) {
+        this.governor = governor;
+    }
+
+    public RateGovernor getRateGovernor() {
+        return governor;
+    }
+
+    public ReadMonitor getReadMonitor() {
+        return readMonitor;
+    }
+
+    public SmbCallStats getCallStats() {
+        return callStats;
+    }
 
     public void connect(String host, int port, String username, String password, String shareName) 
             throws NetworkConnectionException {
+        connect(host, port, username, password, shareName, AppConstants.DEFAULT_SMB_SESSIONS);
+    }
+
+    /**
+     * @param sessions SMB sessions kept open to the share, shared by parallel listings and reads
+     */
+    public void connect(String host, int port, String username, String password, String shareName, int sessions)
+            throws NetworkConnectionException {
+        SmbConnectionPool connecting = null;
         try {
-            Properties props = createSmbProperties();
-            PropertyConfiguration config = new PropertyConfiguration(props);
-            CIFSContext baseContext = new BaseContext(config);
-            
+            String shareUrl = String.format(AppConstants.SMB_URL_FORMAT, host, port, shareName);
             NtlmPasswordAuthenticator auth = new NtlmPasswordAuthenticator(username, password);
-            this.context = baseContext.withCredentials(auth);
+            connecting = new SmbConnectionPool(createSmbProperties(), auth, shareUrl, sessions,
+                    Duration.ofSeconds(AppConstants.SMB_KEEPALIVE_SECONDS));
 
-            testConnection(host, port, shareName);
-            
+            testConnection(connecting, shareUrl);
+
+            SmbConnectionPool previous = this.pool;
+            this.pool = connecting;
+            if (previous != null) {
+                previous.close();
+            }
             this.currentHost = host;
             this.currentPort = port;
             this.currentUsername = username;
             this.currentShareName = shareName;
+            this.currentAuth = auth;
+            this.currentShareUrl = shareUrl;
 
-            logger.info("Successfully connected to SMB share: {}:{}/{}", host, port, shareName);
+            logger.info("Successfully connected to SMB share: {}:{}/{} with {} sessions", host, port, shareName,
+                    connecting.size());
 
         } catch (Exception e) {
+            if (connecting != null) {
+                connecting.close();
+            }
             logger.error("Failed to connect to SMB share: {}:{}", host, port, e);
             throw new NetworkConnectionException("SMB connection failed: " + e.getMessage(), e);
         }
@@ -62,38 +112,82 @@ public class NetworkFileService {
         return props;
     }
     
-    private void testConnection(String host, int port, String shareName) throws IOException {
-        String testUrl = String.format(AppConstants.SMB_URL_FORMAT, host, port, shareName);
-        SmbFile testFile = new SmbFile(testUrl, context);
-        testFile.exists();
+    private static void testConnection(SmbConnectionPool pool, String shareUrl) throws IOException {
+        try (SmbConnectionPool.Lease lease = pool.lease()) {
+            SmbFile testFile = new SmbFile(shareUrl, lease.context());
+            testFile.exists();
+        }
+    }
+
+    /**
+     * Paths that are not SMB URLs refer to shares already mounted into the local filesystem
+     * (CIFS mounts, mapped drives) and are served without a jcifs session.
+     */
+    public static boolean isLocalPath(String path) {
+        return !path.regionMatches(true, 0, SMB_SCHEME, 0, SMB_SCHEME.length());
     }
 
     public List<FileInfo> listFiles(String remotePath) throws IOException {
-        validateConnection();
+        governor.acquireReadOp();
+        if (isLocalPath(remotePath)) {
+            return listLocalFiles(remotePath);
+        }
 
+        SmbConnectionPool.Lease lease = validateConnection().lease();
         try {
-            SmbFile directory = new SmbFile(remotePath, context);
-            SmbFile[] files = directory.listFiles();
-
+            long start = System.nanoTime();
             List<FileInfo> fileInfos = new ArrayList<>();
 
-            if (files != null) {
-                for (SmbFile file : files) {
-                    FileInfo info = createFileInfo(file);
-                    fileInfos.add(info);
-                }
-            }
+            // Listed entries carry the attributes the directory query returned, cached only for a
+            // while: reading them as each entry arrives keeps the getters from querying the server
+            SmbFile directory = new SmbFile(remotePath, lease.context());
+            directory.listFiles(file -> {
+                fileInfos.add(createFileInfo(file));
+                return false;
+            });
+
+            long elapsed = System.nanoTime() - start;
+            readMonitor.record(0, elapsed);
+            callStats.recordListing(elapsed, fileInfos.size());
 
             logger.debug("Listed {} files/directories from: {}", fileInfos.size(), remotePath);
             return fileInfos;
 
         } catch (Exception e) {
+            lease.failed(e);
             logger.error("Failed to list files from: {}", remotePath, e);
             throw new IOException("Failed to list remote files: " + e.getMessage(), e);
+        } finally {
+            lease.close();
         }
     }
     
-    private FileInfo createFileInfo(SmbFile file) throws IOException {
+    private List<FileInfo> listLocalFiles(String localPath) throws IOException {
+        List<FileInfo> fileInfos = new ArrayList<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Path.of(localPath))) {
+            for (Path entry : entries) {
+                fileInfos.add(localFileInfo(entry));
+            }
+        }
+
+        logger.debug("Listed {} files/directories from mounted path: {}", fileInfos.size(), localPath);
+        return fileInfos;
+    }
+
+    private static FileInfo localFileInfo(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        FileInfo info = new FileInfo();
+        info.setName(path.getFileName().toString());
+        info.setPath(path.toString());
+        info.setDirectory(attributes.isDirectory());
+        info.setSize(attributes.isDirectory() ? 0 : attributes.size());
+        info.setLastModified(attributes.lastModifiedTime().toMillis());
+        return info;
+    }
+
+    private static FileInfo createFileInfo(SmbFile file) throws SmbException {
         FileInfo info = new FileInfo();
         info.setName(file.getName());
         info.setPath(file.getPath());
@@ -104,50 +198,201 @@ public class NetworkFileService {
     }
 
     public InputStream openFile(String remotePath) throws IOException {
-        validateConnection();
+        governor.acquireReadOp();
+        if (isLocalPath(remotePath)) {
+            return governor.throttle(readMonitor.monitor(Files.newInputStream(Path.of(remotePath))));
+        }
 
+        SmbConnectionPool.Lease lease = validateConnection().lease();
         try {
-            SmbFile file = new SmbFile(remotePath, context);
-            return new SmbFileInputStream(file);
+            long start = System.nanoTime();
+            SmbFile file = new SmbFile(remotePath, lease.context());
+            InputStream input = leased(new SmbFileInputStream(file), lease);
+            long elapsed = System.nanoTime() - start;
+            readMonitor.record(0, elapsed);
+            callStats.record(SmbCallStats.Operation.OPEN, elapsed);
+            // Throttling outside the monitor keeps deliberate waits out of the measured latency
+            return governor.throttle(readMonitor.monitor(input));
         } catch (Exception e) {
+            lease.failed(e);
+            lease.close();
             logger.error("Failed to open remote file: {}", remotePath, e);
             throw new IOException("Failed to open remote file: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Holds the session a stream reads through until the stream is closed.
+     */
+    private static InputStream leased(InputStream input, SmbConnectionPool.Lease lease) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    lease.failed(e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    lease.failed(e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    lease.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a file for positioned reads. Callers charge the bytes they read to the rate governor.
+     */
+    public SmbRandomAccess openRandomAccess(String remotePath) throws IOException {
+        governor.acquireReadOp();
+        SmbConnectionPool.Lease lease = validateConnection().lease();
+
+        try {
+            long start = System.nanoTime();
+            SmbFile file = new SmbFile(remotePath, lease.context());
+            // Holds the session until the handle is closed
+            SmbRandomAccess access = new SmbRandomAccessFile(file, "r") {
+                @Override
+                public int read(byte[] b, int off, int len) throws SmbException {
+                    try {
+                        return super.read(b, off, len);
+                    } catch (SmbException e) {
+                        lease.failed(e);
+                        throw e;
+                    }
+                }
+
+                @Override
+                public synchronized void close() throws SmbException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+            callStats.record(SmbCallStats.Operation.OPEN, System.nanoTime() - start);
+            return access;
+        } catch (Exception e) {
+            lease.failed(e);
+            lease.close();
+            logger.error("Failed to open remote file for random access: {}", remotePath, e);
+            throw new IOException("Failed to open remote file: " + e.getMessage(), e);
+        }
+    }
+
     public FileInfo getFileInfo(String remotePath) throws IOException {
-        validateConnection();
+        governor.acquireReadOp();
+        if (isLocalPath(remotePath)) {
+            return localFileInfo(Path.of(remotePath));
+        }
 
+        SmbConnectionPool.Lease lease = validateConnection().lease();
         try {
-            SmbFile file = new SmbFile(remotePath, context);
-            return createFileInfo(file);
+            long start = System.nanoTime();
+            SmbFile file = new SmbFile(remotePath, lease.context());
+            // The first getter queries every attribute at once; the rest read the cache
+            FileInfo info = createFileInfo(file);
+            callStats.record(SmbCallStats.Operation.STAT, System.nanoTime() - start);
+            return info;
         } catch (Exception e) {
+            lease.failed(e);
             logger.error("Failed to get file info for: {}", remotePath, e);
             throw new IOException("Failed to get remote file info: " + e.getMessage(), e);
+        } finally {
+            lease.close();
         }
     }
     
-    private void validateConnection() throws IllegalStateException {
-        if (context == null) {
+    /**
+     * Like {@link #getFileInfo}, but returns {@code null} when nothing exists at the path.
+     */
+    public FileInfo findFileInfo(String remotePath) throws IOException {
+        if (isLocalPath(remotePath)) {
+            governor.acquireReadOp();
+            return Files.exists(Path.of(remotePath)) ? localFileInfo(Path.of(remotePath)) : null;
+        }
+
+        governor.acquireReadOp();
+        SmbConnectionPool.Lease lease = validateConnection().lease();
+        try {
+            long start = System.nanoTime();
+            SmbFile file = new SmbFile(remotePath, lease.context());
+            // The existence check queries every attribute at once; the getters read the cache
+            FileInfo info = file.exists() ? createFileInfo(file) : null;
+            callStats.record(SmbCallStats.Operation.STAT, System.nanoTime() - start);
+            return info;
+        } catch (Exception e) {
+            lease.failed(e);
+            logger.error("Failed to get file info for: {}", remotePath, e);
+            throw new IOException("Failed to get remote file info: " + e.getMessage(), e);
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Starts collecting the paths changed under a directory of the connected share, on a session
+     * of its own so the watch outlives later connects.
+     */
+    public ChangeWatcher watch(String remotePath) throws IOException {
+        validateConnection();
+        SmbConnectionPool watchPool = new SmbConnectionPool(createSmbProperties(), currentAuth, currentShareUrl, 1,
+                Duration.ofSeconds(AppConstants.SMB_KEEPALIVE_SECONDS));
+        try {
+            return new ChangeWatcher(watchPool, remotePath);
+        } catch (IOException | RuntimeException e) {
+            watchPool.close();
+            throw e;
+        }
+    }
+
+    private SmbConnectionPool validateConnection() throws IllegalStateException {
+        SmbConnectionPool connected = pool;
+        if (connected == null) {
             throw new IllegalStateException("Not connected to NAS");
         }
+        return connected;
     }
 
     public boolean isConnected() {
-        return context != null;
+        return pool != null;
     }
 
     public void disconnect() {
-        context = null;
+        SmbConnectionPool connected = pool;
+        pool = null;
+        if (connected != null) {
+            connected.close();
+        }
         currentHost = null;
         currentPort = 0;
         currentUsername = null;
         currentShareName = null;
+        currentAuth = null;
+        currentShareUrl = null;
         logger.info("Disconnected from SMB share");
     }
 
     public String getConnectionInfo() {
-        if (context != null) {
+        if (pool != null) {
             return String.format("%s@%s:%d/%s", currentUsername, currentHost, currentPort, currentShareName);
         }
         return "Not connected";
@@ -0,0 +1,344 @@
+package com.backup.service;
+
+import com.backup.model.DurabilityPolicy;
+import com.backup.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Stores small files inside large append-only pack files on the destination drive, so a tree of
+ * tiny files costs sequential writes instead of one create and cluster allocation per file.
+ * An append-only index maps each relative path to its pack, offset, length and modification time;
+ * later records for the same path supersede earlier ones. Once superseded content makes up most
+ * of the packs, opening the store copies the live files into fresh packs and rewrites the index.
+ */
+public class PackStore implements Flushable, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackStore.class);
+
+    public static final String PACK_DIR_NAME = ".backup-packs";
+    private static final String INDEX_FILE = "index.dat";
+    private static final String PACK_FILE_FORMAT = "pack-%05d.dat";
+    private static final int INDEX_MAGIC = 0x504B4958;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_LENGTH = 8;
+
+    public record Entry(int pack, long offset, long length, long lastModified) {
+    }
+
+    private final Path packDirectory;
+    private final long maxPackSize;
+    private final DurabilityPolicy durability;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final FileChannel indexChannel;
+    private final DataOutputStream indexOutput;
+    private FileChannel currentPack;
+    private int currentPackNumber;
+
+    /**
+     * @param durability when the packs and index are forced: after every file with {@link DurabilityPolicy#PER_FILE},
+     *                   on {@link #flush()} with {@link DurabilityPolicy#BATCHED}, otherwise only on close
+     */
+    public PackStore(Path destinationRoot, long maxPackSize, DurabilityPolicy durability) throws IOException {
+        this.packDirectory = destinationRoot.resolve(PACK_DIR_NAME);
+        this.maxPackSize = maxPackSize;
+        this.durability = durability;
+        Files.createDirectories(packDirectory);
+
+        Path indexPath = packDirectory.resolve(INDEX_FILE);
+        boolean newIndex = !Files.exists(indexPath) || Files.size(indexPath) == 0;
+        if (!newIndex) {
+            loadIndex(indexPath);
+            if (isWorthCompacting()) {
+                compact(indexPath);
+            }
+        }
+
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        indexChannel.position(indexChannel.size());
+        this.indexOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel)));
+        if (newIndex) {
+            writeIndexHeader(indexOutput);
+        }
+
+        openPack(findLatestPackNumber());
+        logger.info("Opened pack store at {} with {} indexed files", packDirectory, entries.size());
+    }
+
+    private void loadIndex(Path indexPath) throws IOException {
+        long validLength = INDEX_HEADER_LENGTH;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                throw new IOException("Unrecognized pack index format: " + indexPath);
+            }
+
+            while (true) {
+                String path;
+                Entry entry;
+                try {
+                    path = input.readUTF();
+                    entry = new Entry(input.readInt(), input.readLong(), input.readLong(), input.readLong());
+                } catch (EOFException e) {
+                    break;
+                }
+                entries.put(path, entry);
+                validLength += recordLength(path);
+            }
+        }
+
+        // Drop a record that was only partly written when a previous run stopped
+        if (Files.size(indexPath) > validLength) {
+            logger.warn("Truncating incomplete pack index record in {}", indexPath);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    private int findLatestPackNumber() throws IOException {
+        try (Stream<Path> packs = Files.list(packDirectory)) {
+            return packs.filter(PackStore::isPackFile)
+                    .mapToInt(PackStore::packNumber)
+                    .max()
+                    .orElse(1);
+        }
+    }
+
+    private static boolean isPackFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith("pack-") && name.endsWith(".dat");
+    }
+
+    private static int packNumber(Path pack) {
+        String name = pack.getFileName().toString();
+        return Integer.parseInt(name.substring(5, name.length() - 4));
+    }
+
+    /**
+     * Whether superseded content, including packs an interrupted compaction left behind, outweighs
+     * the live files and amounts to at least a full pack.
+     */
+    private boolean isWorthCompacting() throws IOException {
+        long packBytes;
+        try (Stream<Path> packs = Files.list(packDirectory)) {
+            packBytes = packs.filter(PackStore::isPackFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+        long liveBytes = entries.values().stream().mapToLong(Entry::length).sum();
+        long deadBytes = packBytes - liveBytes;
+        return deadBytes >= maxPackSize && deadBytes > liveBytes;
+    }
+
+    /**
+     * Copies the live files into packs numbered after every existing one and swaps in an index of
+     * only those. The old index stays valid until the new one replaces it, so a run stopped part
+     * way loses nothing; its new packs are superseded content for the next compaction.
+     */
+    private void compact(Path indexPath) throws IOException {
+        int firstPack = findLatestPackNumber() + 1;
+        Path compactedIndex = packDirectory.resolve(INDEX_FILE + ".tmp");
+        Map<String, Entry> compacted = new HashMap<>();
+
+        // In pack order, so the old packs are read sequentially
+        List<Map.Entry<String, Entry>> live = new ArrayList<>(entries.entrySet());
+        live.sort(Comparator.comparingInt((Map.Entry<String, Entry> e) -> e.getValue().pack())
+                .thenComparingLong(e -> e.getValue().offset()));
+
+        try (FileChannel indexFile = FileChannel.open(compactedIndex, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexFile)));
+            writeIndexHeader(index);
+
+            int outputNumber = firstPack;
+            FileChannel output = FileChannel.open(packPath(outputNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileChannel input = null;
+            int inputNumber = -1;
+            try {
+                for (Map.Entry<String, Entry> file : live) {
+                    Entry entry = file.getValue();
+                    if (entry.pack() != inputNumber) {
+                        if (input != null) {
+                            input.close();
+                        }
+                        inputNumber = entry.pack();
+                        input = FileChannel.open(packPath(inputNumber), StandardOpenOption.READ);
+                    }
+                    if (output.position() > 0 && output.position() + entry.length() > maxPackSize) {
+                        output.force(true);
+                        output.close();
+                        output = FileChannel.open(packPath(++outputNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    }
+
+                    long offset = output.position();
+                    long copied = 0;
+                    while (copied < entry.length()) {
+                        long transferred = input.transferTo(entry.offset() + copied, entry.length() - copied, output);
+                        if (transferred <= 0) {
+                            throw new EOFException("Pack file is shorter than its index: " + file.getKey());
+                        }
+                        copied += transferred;
+                    }
+
+                    Entry moved = new Entry(outputNumber, offset, entry.length(), entry.lastModified());
+                    writeIndexRecord(index, file.getKey(), moved);
+                    compacted.put(file.getKey(), moved);
+                }
+                output.force(true);
+            } finally {
+                output.close();
+                if (input != null) {
+                    input.close();
+                }
+            }
+
+            index.flush();
+            indexFile.force(true);
+        }
+
+        Files.move(compactedIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncPackDirectory();
+
+        try (Stream<Path> packs = Files.list(packDirectory)) {
+            for (Path pack : packs.filter(PackStore::isPackFile).toList()) {
+                if (packNumber(pack) < firstPack) {
+                    Files.delete(pack);
+                }
+            }
+        }
+
+        logger.info("Compacted pack store at {} into {} live files", packDirectory, compacted.size());
+        entries.clear();
+        entries.putAll(compacted);
+    }
+
+    /**
+     * Makes the swapped index survive a power loss before the packs it no longer needs are deleted.
+     */
+    private void syncPackDirectory() {
+        try (FileChannel directory = FileChannel.open(packDirectory, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Windows cannot open directories as channels
+            logger.debug("Could not sync {}", packDirectory, e);
+        }
+    }
+
+    private void openPack(int packNumber) throws IOException {
+        if (currentPack != null) {
+            // The index records written next must not reach the drive before the pack they point into
+            if (durability != DurabilityPolicy.NONE) {
+                currentPack.force(true);
+            }
+            currentPack.close();
+        }
+        currentPackNumber = packNumber;
+        currentPack = FileChannel.open(packPath(packNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        currentPack.position(currentPack.size());
+    }
+
+    private Path packPath(int packNumber) {
+        return packDirectory.resolve(String.format(PACK_FILE_FORMAT, packNumber));
+    }
+
+    public synchronized boolean isCurrent(String relativePath, FileInfo source) {
+        Entry entry = entries.get(relativePath);
+        return entry != null && entry.length() == source.getSize() && entry.lastModified() >= source.getLastModified();
+    }
+
+    /**
+     * Appends the remaining bytes of {@code content} to the current pack. Callers only pass files
+     * below the packing threshold, so the whole file is already in memory before taking the lock.
+     */
+    public void store(String relativePath, FileInfo source, ByteBuffer content) throws IOException {
+        int length = content.remaining();
+
+        synchronized (this) {
+            if (currentPack.position() > 0 && currentPack.position() + length > maxPackSize) {
+                openPack(currentPackNumber + 1);
+            }
+
+            long offset = currentPack.position();
+            while (content.hasRemaining()) {
+                currentPack.write(content);
+            }
+
+            Entry entry = new Entry(currentPackNumber, offset, length, source.getLastModified());
+            writeIndexRecord(indexOutput, relativePath, entry);
+            entries.put(relativePath, entry);
+
+            if (durability == DurabilityPolicy.PER_FILE) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Forces the current pack and then the index records pointing into it to the drive.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        currentPack.force(true);
+        indexOutput.flush();
+        indexChannel.force(true);
+    }
+
+    private static void writeIndexHeader(DataOutputStream index) throws IOException {
+        index.writeInt(INDEX_MAGIC);
+        index.writeInt(INDEX_VERSION);
+    }
+
+    private static void writeIndexRecord(DataOutputStream index, String relativePath, Entry entry) throws IOException {
+        index.writeUTF(relativePath);
+        index.writeInt(entry.pack());
+        index.writeLong(entry.offset());
+        index.writeLong(entry.length());
+        index.writeLong(entry.lastModified());
+    }
+
+    private static long recordLength(String path) {
+        return utfLength(path) + 4 + 8 + 8 + 8;
+    }
+
+    /**
+     * Bytes {@link DataOutputStream#writeUTF} writes for the string: modified UTF-8 with a two byte length prefix.
+     */
+    static long utfLength(String value) {
+        long length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            currentPack.close();
+            indexOutput.close();
+        }
+    }
+}
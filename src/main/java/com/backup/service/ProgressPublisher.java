@@ -0,0 +1,156 @@
+package com.backup.service;
+
+import com.backup.model.Progress;
+import javafx.application.Platform;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects progress from the copy workers in lock-free counters and publishes an immutable
+ * {@link Progress} snapshot to the UI at a fixed rate. At most one update is waiting on the JavaFX
+ * thread at a time, so the cost to the UI does not grow with the number of files. Throughput is
+ * taken from the bytes read at the source, so it moves while a large file is still copying.
+ * The ETA comes from a {@link DurationPredictor} when earlier runs allow one, otherwise from a
+ * slowly smoothed byte rate.
+ */
+class ProgressPublisher implements AutoCloseable {
+
+    private static final long PUBLISH_MILLIS = 100;
+    private static final double RATE_SMOOTHING = 0.1;
+    private static final double ETA_SMOOTHING = 0.02;
+
+    private final Consumer<Progress> progressCallback;
+    private final Consumer<String> statusCallback;
+    private final LongSupplier bytesRead;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder filesProcessed = new LongAdder();
+    private final LongAdder bytesProcessed = new LongAdder();
+    private volatile long totalFiles;
+    private volatile long totalBytes;
+    private volatile String currentFile;
+    private volatile DurationPredictor predictor;
+    // When the first totals arrived, so a separate analysis walk does not count as copy time
+    private volatile long startNanos;
+
+    private final AtomicReference<Progress> latest = new AtomicReference<>();
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+    private String publishedFile;
+
+    // Only touched by the scheduler thread
+    private long lastSampleNanos = System.nanoTime();
+    private long lastBytesRead;
+    private long lastFiles;
+    private double bytesPerSecond;
+    private double filesPerSecond;
+    private double etaBytesPerSecond;
+
+    ProgressPublisher(Consumer<Progress> progressCallback, Consumer<String> statusCallback, LongSupplier bytesRead) {
+        this.progressCallback = progressCallback;
+        this.statusCallback = statusCallback;
+        this.bytesRead = bytesRead;
+        this.lastBytesRead = bytesRead.getAsLong();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(CopyEngine.namedThreads("backup-progress"));
+        scheduler.scheduleAtFixedRate(this::publish, PUBLISH_MILLIS, PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void setTotals(long files, long bytes) {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        totalFiles = files;
+        totalBytes = bytes;
+    }
+
+    /**
+     * Time since the first totals arrived, the interval {@link DurationPredictor} is fitted on.
+     */
+    long copyMillis() {
+        long start = startNanos;
+        return start != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) : 0;
+    }
+
+    void setPredictor(DurationPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    void fileStarted(String name) {
+        currentFile = name;
+    }
+
+    void entryCompleted(long bytes) {
+        filesProcessed.increment();
+        bytesProcessed.add(bytes);
+    }
+
+    private void publish() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+        long read = bytesRead.getAsLong();
+        long files = filesProcessed.sum();
+        long bytes = bytesProcessed.sum();
+
+        bytesPerSecond = smooth(bytesPerSecond, (read - lastBytesRead) / seconds, RATE_SMOOTHING);
+        filesPerSecond = smooth(filesPerSecond, (files - lastFiles) / seconds, RATE_SMOOTHING);
+        etaBytesPerSecond = smooth(etaBytesPerSecond, (read - lastBytesRead) / seconds, ETA_SMOOTHING);
+        lastSampleNanos = now;
+        lastBytesRead = read;
+        lastFiles = files;
+
+        long eta;
+        DurationPredictor model = predictor;
+        if (model != null) {
+            eta = startNanos != 0 && totalFiles > 0
+                    ? model.remainingSeconds(files, bytes, totalFiles, totalBytes, (now - startNanos) / 1e9)
+                    : -1;
+        } else {
+            long remaining = Math.max(0, totalBytes - bytes);
+            eta = etaBytesPerSecond > 1 ? (long) (remaining / etaBytesPerSecond) : -1;
+        }
+
+        latest.set(new Progress(totalFiles, totalBytes, files, bytes,
+                bytesPerSecond, filesPerSecond, eta, currentFile));
+        if (updatePending.compareAndSet(false, true)) {
+            Platform.runLater(this::deliver);
+        }
+    }
+
+    private static double smooth(double average, double sample, double weight) {
+        return average + weight * (sample - average);
+    }
+
+    /**
+     * Runs on the JavaFX thread with whatever snapshot is newest by then.
+     */
+    private void deliver() {
+        updatePending.set(false);
+        Progress progress = latest.get();
+        progressCallback.accept(progress);
+
+        if (progress.currentFile != null && !progress.currentFile.equals(publishedFile)) {
+            publishedFile = progress.currentFile;
+            statusCallback.accept("Copying: " + publishedFile);
+        }
+    }
+
+    /**
+     * Stops sampling and publishes the final counts.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        publish();
+    }
+}
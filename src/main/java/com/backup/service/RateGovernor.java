@@ -0,0 +1,134 @@
+package com.backup.service;
+
+import com.backup.model.RateLimits;
+import com.backup.model.RateProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttles backup traffic with token buckets for bytes and operations on both the read side (the
+ * NAS) and the write side (the destination drive). The limits come from the first time-of-day
+ * profile covering the current time, or the default limits outside every profile, and can be
+ * replaced while a backup runs.
+ */
+public class RateGovernor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RateGovernor.class);
+    private static final long PROFILE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket readBytes = new TokenBucket();
+    private final TokenBucket readOps = new TokenBucket();
+    private final TokenBucket writeBytes = new TokenBucket();
+    private final TokenBucket writeOps = new TokenBucket();
+
+    private volatile RateLimits defaultLimits = new RateLimits();
+    private volatile List<RateProfile> profiles = List.of();
+    private volatile RateLimits activeLimits = new RateLimits();
+    private volatile long nextProfileCheck = System.nanoTime();
+
+    /**
+     * Replaces the limits. Takes effect immediately, including for transfers already waiting.
+     */
+    public void configure(RateLimits defaultLimits, List<RateProfile> profiles) {
+        this.defaultLimits = defaultLimits != null ? defaultLimits : new RateLimits();
+        this.profiles = profiles != null ? List.copyOf(profiles) : List.of();
+        applyProfile(true);
+    }
+
+    public RateLimits getActiveLimits() {
+        return activeLimits;
+    }
+
+    public void acquireRead(long bytes) throws InterruptedIOException {
+        refreshProfile();
+        readBytes.acquire(bytes);
+    }
+
+    public void acquireReadOp() throws InterruptedIOException {
+        refreshProfile();
+        readOps.acquire(1);
+    }
+
+    public void acquireWrite(long bytes) throws InterruptedIOException {
+        refreshProfile();
+        writeBytes.acquire(bytes);
+    }
+
+    public void acquireWriteOp() throws InterruptedIOException {
+        refreshProfile();
+        writeOps.acquire(1);
+    }
+
+    /**
+     * Whether byte rates are limited at all, so copies can size their chunks for smooth throttling.
+     */
+    public boolean isBandwidthLimited() {
+        refreshProfile();
+        return readBytes.isLimited() || writeBytes.isLimited();
+    }
+
+    /**
+     * Wraps a source stream so every byte read is charged to the read bandwidth limit.
+     */
+    public InputStream throttle(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    acquireRead(1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    acquireRead(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    private void refreshProfile() {
+        if (System.nanoTime() - nextProfileCheck >= 0) {
+            applyProfile(false);
+        }
+    }
+
+    private synchronized void applyProfile(boolean force) {
+        nextProfileCheck = System.nanoTime() + PROFILE_CHECK_NANOS;
+
+        LocalTime now = LocalTime.now();
+        RateLimits limits = defaultLimits;
+        for (RateProfile profile : profiles) {
+            if (profile.getLimits() != null && profile.isActiveAt(now)) {
+                limits = profile.getLimits();
+                break;
+            }
+        }
+
+        if (!force && limits.equals(activeLimits)) {
+            return;
+        }
+
+        readBytes.setRate(limits.getReadBytesPerSecond());
+        readOps.setRate(limits.getReadOpsPerSecond());
+        writeBytes.setRate(limits.getWriteBytesPerSecond());
+        writeOps.setRate(limits.getWriteOpsPerSecond());
+        // A copy, so limits edited in place are noticed at the next check
+        activeLimits = new RateLimits(limits.getReadBytesPerSecond(), limits.getReadOpsPerSecond(),
+                limits.getWriteBytesPerSecond(), limits.getWriteOpsPerSecond());
+        logger.info("Backup rate limits: {}", limits);
+    }
+}
@@ -0,0 +1,56 @@
+package com.backup.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts bytes read from the source and the time spent in read calls, so the copy concurrency can
+ * follow the throughput and latency the NAS actually delivers. Opening a file or listing a directory
+ * counts as a call without bytes.
+ */
+public class ReadMonitor {
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    public void record(long bytesRead, long elapsedNanos) {
+        bytes.add(bytesRead);
+        calls.increment();
+        nanos.add(elapsedNanos);
+    }
+
+    public InputStream monitor(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int value = super.read();
+                record(value >= 0 ? 1 : 0, System.nanoTime() - start);
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int read = super.read(b, off, len);
+                record(Math.max(0, read), System.nanoTime() - start);
+                return read;
+            }
+        };
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+}
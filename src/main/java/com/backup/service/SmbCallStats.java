@@ -0,0 +1,73 @@
+package com.backup.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the {@link NetworkFileService} calls of each kind made against SMB and the time they
+ * took, along with the entries the listings returned. These are logical calls: one listing may
+ * take several directory query requests on the wire.
+ */
+public class SmbCallStats {
+
+    public enum Operation {
+        LIST, STAT, OPEN
+    }
+
+    private final LongAdder[] calls = adders();
+    private final LongAdder[] nanos = adders();
+    private final LongAdder entries = new LongAdder();
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[Operation.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void record(Operation operation, long elapsedNanos) {
+        calls[operation.ordinal()].increment();
+        nanos[operation.ordinal()].add(elapsedNanos);
+    }
+
+    void recordListing(long elapsedNanos, long listed) {
+        record(Operation.LIST, elapsedNanos);
+        entries.add(listed);
+    }
+
+    public long getCalls(Operation operation) {
+        return calls[operation.ordinal()].sum();
+    }
+
+    public long getNanos(Operation operation) {
+        return nanos[operation.ordinal()].sum();
+    }
+
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    public void reset() {
+        for (Operation operation : Operation.values()) {
+            calls[operation.ordinal()].reset();
+            nanos[operation.ordinal()].reset();
+        }
+        entries.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            if (!text.isEmpty()) {
+                text.append(", ");
+            }
+            text.append(String.format("%s %d in %.1f s", operation, getCalls(operation),
+                    getNanos(operation) / 1e9));
+            if (operation == Operation.LIST) {
+                text.append(String.format(" (%d entries)", getEntries()));
+            }
+        }
+        return text.toString();
+    }
+}
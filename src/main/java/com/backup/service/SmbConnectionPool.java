@@ -0,0 +1,258 @@
+package com.backup.service;
+
+import jcifs.CIFSContext;
+import jcifs.CIFSException;
+import jcifs.Credentials;
+import jcifs.config.PropertyConfiguration;
+import jcifs.context.BaseContext;
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jcifs.util.transport.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Authenticated sessions to one SMB share, each over a connection of its own, lent to the walker
+ * and copy workers so parallel listings and reads spread over several sessions instead of queueing
+ * behind one. A session keeps its connection, logon and tree connect between calls; idle sessions
+ * are kept alive with a cheap query, and a session whose connection failed is replaced once the
+ * calls still holding it have returned.
+ */
+public class SmbConnectionPool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmbConnectionPool.class);
+
+    private static final int NT_STATUS_USER_SESSION_DELETED = 0xC0000203;
+
+    private final Properties properties;
+    private final Credentials credentials;
+    private final String shareUrl;
+    private final long keepaliveMillis;
+    private final Session[] sessions;
+    private final ScheduledExecutorService keepalive;
+    private boolean closed;
+
+    private final class Session {
+        final int index;
+        BaseContext base;
+        CIFSContext context;
+        int active;
+        boolean broken;
+        long lastUsed;
+
+        Session(int index) throws CIFSException {
+            this.index = index;
+            open();
+        }
+
+        void open() throws CIFSException {
+            // A context of its own gives the session its own transport, and so its own connection
+            base = new BaseContext(new PropertyConfiguration(properties));
+            context = base.withCredentials(credentials);
+            broken = false;
+            lastUsed = 0;
+        }
+    }
+
+    /**
+     * Lends one session to a call, until closed. Streams and handles opened on it hold the lease
+     * while they are open.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Session session;
+        private final CIFSContext context;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(Session session, CIFSContext context) {
+            this.session = session;
+            this.context = context;
+        }
+
+        public CIFSContext context() {
+            return context;
+        }
+
+        /**
+         * Reports a failed call; the session is replaced when the failure was its connection's.
+         */
+        public void failed(Throwable e) {
+            if (isConnectionFailure(e)) {
+                markBroken(session, context, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(session);
+            }
+        }
+    }
+
+    public SmbConnectionPool(Properties properties, Credentials credentials, String shareUrl, int size,
+                             Duration keepaliveInterval) throws CIFSException {
+        this.properties = properties;
+        this.credentials = credentials;
+        this.shareUrl = shareUrl;
+        this.keepaliveMillis = keepaliveInterval.toMillis();
+        this.sessions = new Session[Math.max(1, size)];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new Session(i);
+        }
+
+        this.keepalive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smb-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepalive.scheduleWithFixedDelay(this::keepAlive, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    /**
+     * Lends the session with the fewest calls in flight, passing over broken ones while any other
+     * is usable.
+     */
+    public Lease lease() throws IOException {
+        List<BaseContext> retired = new ArrayList<>();
+        Lease lease;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("SMB connection pool closed");
+            }
+            Session best = null;
+            for (Session session : sessions) {
+                if (session.broken && session.active == 0) {
+                    retired.add(retire(session));
+                }
+                if (best == null || load(session) < load(best)) {
+                    best = session;
+                }
+            }
+            lease = lease(best);
+        }
+        retired.forEach(SmbConnectionPool::close);
+        return lease;
+    }
+
+    private static long load(Session session) {
+        return session.broken ? Integer.MAX_VALUE + (long) session.active : session.active;
+    }
+
+    private Lease lease(Session session) {
+        session.active++;
+        session.lastUsed = System.currentTimeMillis();
+        return new Lease(session, session.context);
+    }
+
+    private void release(Session session) {
+        BaseContext retired = null;
+        synchronized (this) {
+            session.active--;
+            session.lastUsed = System.currentTimeMillis();
+            if (session.broken && session.active == 0 && !closed) {
+                retired = retire(session);
+            }
+        }
+        close(retired);
+    }
+
+    private synchronized void markBroken(Session session, CIFSContext context, Throwable cause) {
+        // A late failure on a context already replaced says nothing about the new one
+        if (session.context == context && !session.broken) {
+            logger.warn("SMB session {} failed, replacing it: {}", session.index, cause.getMessage());
+            session.broken = true;
+        }
+    }
+
+    /**
+     * Swaps a session's context for a fresh one. The old context is returned for closing outside
+     * the lock, since closing it may wait on the network.
+     */
+    private BaseContext retire(Session session) {
+        BaseContext old = session.base;
+        try {
+            session.open();
+        } catch (CIFSException e) {
+            logger.error("Could not replace SMB session {}", session.index, e);
+            return null;
+        }
+        return old;
+    }
+
+    private static void close(BaseContext context) {
+        if (context == null) {
+            return;
+        }
+        try {
+            context.close();
+        } catch (CIFSException e) {
+            logger.debug("Error closing SMB session", e);
+        }
+    }
+
+    private void keepAlive() {
+        for (Session session : sessions) {
+            Lease lease;
+            synchronized (this) {
+                if (closed || session.active > 0
+                        || System.currentTimeMillis() - session.lastUsed < keepaliveMillis) {
+                    continue;
+                }
+                lease = lease(session);
+            }
+
+            try {
+                // A fresh handle, so the query goes to the server rather than the attribute cache
+                new SmbFile(shareUrl, lease.context()).exists();
+            } catch (IOException e) {
+                markBroken(session, lease.context(), e);
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    static boolean isConnectionFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransportException || cause instanceof SocketException) {
+                return true;
+            }
+            if (cause instanceof SmbException smb
+                    && (smb.getNtStatus() == NtStatus.NT_STATUS_NETWORK_NAME_DELETED
+                    || smb.getNtStatus() == NT_STATUS_USER_SESSION_DELETED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        keepalive.shutdownNow();
+        for (Session session : sessions) {
+            close(session.base);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.backup.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Dated snapshot generations on the destination drive. Every run writes a new generation
+ * directory; files unchanged since the previous generation are hard links to it, so a snapshot
+ * only costs the data that changed. A generation is named {@code <timestamp>.incomplete} until
+ * its run succeeds, and a run after a failed one continues the incomplete generation.
+ * <p>
+ * Files in a generation are never modified in place, since their content may be shared with
+ * older generations: copies replace them through a rename.
+ */
+public class SnapshotGenerations {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotGenerations.class);
+
+    public static final String INCOMPLETE_SUFFIX = ".incomplete";
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+    private static final Pattern NAME_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{6}");
+    private static final String LINK_PROBE = ".link-probe";
+
+    private final Path root;
+    private final Path previous;
+    private final Path current;
+    private final boolean linksSupported;
+    private ChecksumManifest previousChecksums;
+
+    public SnapshotGenerations(Path root, boolean carryChecksums) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+
+        String latestComplete = null;
+        String latestIncomplete = null;
+        try (Stream<Path> entries = Files.list(root)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                String name = entry.getFileName().toString();
+                boolean incomplete = name.endsWith(INCOMPLETE_SUFFIX);
+                String stamp = incomplete ? name.substring(0, name.length() - INCOMPLETE_SUFFIX.length()) : name;
+                if (!NAME_PATTERN.matcher(stamp).matches() || !Files.isDirectory(entry)) {
+                    continue;
+                }
+                if (incomplete) {
+                    latestIncomplete = max(latestIncomplete, name);
+                } else {
+                    latestComplete = max(latestComplete, name);
+                }
+            }
+        }
+
+        this.previous = latestComplete != null ? root.resolve(latestComplete) : null;
+        if (latestIncomplete != null && (latestComplete == null || latestIncomplete.compareTo(latestComplete) > 0)) {
+            this.current = root.resolve(latestIncomplete);
+            logger.info("Continuing snapshot {}", current);
+        } else {
+            this.current = Files.createDirectory(
+                    root.resolve(NAME_FORMAT.format(LocalDateTime.now()) + INCOMPLETE_SUFFIX));
+            logger.info("Starting snapshot {}", current);
+        }
+
+        this.linksSupported = previous != null && probeLinks();
+        if (carryChecksums && linksSupported
+                && Files.exists(previous.resolve(ChecksumManifest.MANIFEST_FILE_NAME))) {
+            this.previousChecksums = new ChecksumManifest(previous);
+        }
+    }
+
+    private static String max(String a, String b) {
+        return a == null || b.compareTo(a) > 0 ? b : a;
+    }
+
+    private boolean probeLinks() throws IOException {
+        Path probe = current.resolve(LINK_PROBE);
+        Path link = current.resolve(LINK_PROBE + "-link");
+        try {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(probe);
+            Files.createFile(probe);
+            Files.createLink(link, probe);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            logger.warn("Destination does not support hard links, every snapshot will be a full copy");
+            return false;
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    /**
+     * The generation this run writes to.
+     */
+    public Path getCurrent() {
+        return current;
+    }
+
+    /**
+     * Returns the previous generation's copy of a file when it is current for the source and can be
+     * linked, otherwise {@code null}. A compressed copy counts when {@code compression} is on.
+     */
+    public Path unchanged(String relativePath, long size, long lastModified, boolean compression) {
+        if (!linksSupported) {
+            return null;
+        }
+
+        Path file = previous.resolve(relativePath);
+        BasicFileAttributes attributes = attributes(file);
+        if (attributes != null) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() >= lastModified ? file : null;
+        }
+
+        if (compression) {
+            // The stored size is the compressed one, so only the modification time tells
+            Path compressed = FileCopier.compressedPath(file);
+            attributes = attributes(compressed);
+            if (attributes != null && attributes.lastModifiedTime().toMillis() >= lastModified) {
+                return compressed;
+            }
+        }
+        return null;
+    }
+
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Could not check previous snapshot file: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Links a file of the previous generation into the current one, in the same stored form.
+     *
+     * @return the link created
+     */
+    public Path link(Path destination, Path previousFile) throws IOException {
+        Path link = previousFile.getFileName().toString().equals(destination.getFileName().toString())
+                ? destination
+                : FileCopier.compressedPath(destination);
+        try {
+            Files.createLink(link, previousFile);
+        } catch (FileAlreadyExistsException e) {
+            // Linked or copied by the interrupted run this generation continues
+            Files.delete(link);
+            Files.createLink(link, previousFile);
+        }
+        return link;
+    }
+
+    /**
+     * Checksums the previous generation recorded for a file, or {@code null}.
+     */
+    public ChecksumManifest.Entry previousChecksums(String relativePath) {
+        return previousChecksums != null ? previousChecksums.entry(relativePath) : null;
+    }
+
+    /**
+     * Gives the current generation its final name once the run succeeded.
+     *
+     * @return the completed generation
+     */
+    public Path complete() throws IOException {
+        String name = current.getFileName().toString();
+        Path completed = root.resolve(name.substring(0, name.length() - INCOMPLETE_SUFFIX.length()));
+        try {
+            Files.move(current, completed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(current, completed);
+        }
+        logger.info("Snapshot {} complete", completed);
+        return completed;
+    }
+}
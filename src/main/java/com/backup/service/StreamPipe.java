@@ -0,0 +1,228 @@
+package com.backup.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies one stream into a file channel with the read and the write running on different threads,
+ * joined by a bounded queue of pooled buffers. The reader stalls when the queue or the pool is
+ * exhausted, so the network and the destination drive stay busy at the same time without letting
+ * a fast source run ahead of a slow drive.
+ */
+class StreamPipe {
+
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * Receives each filled buffer in stream order. Every buffer but the last is a full pool buffer.
+     */
+    @FunctionalInterface
+    interface BlockSink {
+        void accept(ByteBuffer block) throws IOException;
+    }
+
+    /**
+     * Like {@link BlockSink}, but may keep a block past the call to work on it elsewhere, and
+     * then releases it to the pool itself.
+     */
+    @FunctionalInterface
+    interface KeepingSink {
+        /**
+         * @return whether the sink kept the block; only a sink that returns normally can keep one
+         */
+        boolean accept(ByteBuffer block) throws IOException;
+    }
+
+    private final BufferPool pool;
+    private final RateGovernor governor;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final CountDownLatch readerExited = new CountDownLatch(1);
+    private volatile boolean abandoned;
+
+    StreamPipe(BufferPool pool, int depth, RateGovernor governor) {
+        this.pool = pool;
+        this.governor = governor;
+        this.filled = new ArrayBlockingQueue<>(Math.max(1, depth));
+    }
+
+    long transfer(InputStream input, FileChannel output, ExecutorService readExecutor) throws IOException {
+        return transfer(input, output, readExecutor, (ContentChecksum) null);
+    }
+
+    /**
+     * Like {@link #transfer(InputStream, FileChannel, ExecutorService)}, also feeding every byte
+     * written to {@code checksum} so the content checksum costs no extra pass.
+     */
+    long transfer(InputStream input, FileChannel output, ExecutorService readExecutor,
+                  ContentChecksum checksum) throws IOException {
+        return transfer(input, readExecutor, block -> {
+            if (checksum != null) {
+                checksum.update(block);
+            }
+            governor.acquireWrite(block.remaining());
+            while (block.hasRemaining()) {
+                output.write(block);
+            }
+        });
+    }
+
+    /**
+     * Hands each block to {@code sink}, which charges whatever it writes to the rate governor.
+     */
+    long transfer(InputStream input, ExecutorService readExecutor, BlockSink sink) throws IOException {
+        return transferKeeping(input, readExecutor, block -> {
+            sink.accept(block);
+            return false;
+        });
+    }
+
+    /**
+     * Like {@link #transfer(InputStream, ExecutorService, BlockSink)}, letting the sink keep blocks.
+     */
+    long transferKeeping(InputStream input, ExecutorService readExecutor, KeepingSink sink) throws IOException {
+        Future<Void> reader = readExecutor.submit(() -> {
+            try {
+                read(input);
+            } finally {
+                readerExited.countDown();
+            }
+            return null;
+        });
+
+        boolean completed = false;
+        try {
+            long written = write(sink, reader);
+            awaitReader(reader);
+            completed = true;
+            return written;
+        } finally {
+            if (!completed) {
+                abandon(input, reader);
+            }
+        }
+    }
+
+    private void read(InputStream input) throws IOException, InterruptedException {
+        boolean endOfStream = false;
+
+        while (!endOfStream && !abandoned) {
+            ByteBuffer buffer = pool.acquire(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (buffer == null) {
+                continue;
+            }
+
+            try {
+                endOfStream = !BufferPool.fill(input, buffer);
+            } catch (IOException | RuntimeException e) {
+                pool.release(buffer);
+                throw e;
+            }
+
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                pool.release(buffer);
+            } else if (!enqueue(buffer)) {
+                pool.release(buffer);
+                return;
+            }
+        }
+
+        if (endOfStream) {
+            enqueue(END_OF_STREAM);
+        }
+    }
+
+    private boolean enqueue(ByteBuffer buffer) throws InterruptedException {
+        while (!abandoned) {
+            if (filled.offer(buffer, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long write(KeepingSink sink, Future<Void> reader) throws IOException {
+        long written = 0;
+
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = filled.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Copy interrupted");
+            }
+
+            if (buffer == END_OF_STREAM) {
+                return written;
+            }
+            if (buffer == null) {
+                // A reader that failed never sends the end marker
+                if (reader.isDone() && filled.isEmpty()) {
+                    return written;
+                }
+                continue;
+            }
+
+            boolean kept = false;
+            try {
+                written += buffer.remaining();
+                kept = sink.accept(buffer);
+            } finally {
+                if (!kept) {
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+
+    private void awaitReader(Future<Void> reader) throws IOException {
+        try {
+            reader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Copy interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Read failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void abandon(InputStream input, Future<Void> reader) {
+        abandoned = true;
+        reader.cancel(true);
+
+        // Closing the source unblocks a reader stuck in a network read
+        try {
+            input.close();
+        } catch (IOException ignored) {
+            // The copy has already failed; the original error is what matters
+        }
+
+        try {
+            readerExited.await(POLL_MILLIS * 20, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        ByteBuffer buffer;
+        while ((buffer = filled.poll()) != null) {
+            if (buffer != END_OF_STREAM) {
+                pool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.backup.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket holding up to one second of its rate. A request larger than the tokens available
+ * is granted at once and leaves the bucket in debt, and the caller sleeps until the debt is paid,
+ * so a single large read never waits for a bucket that can never fill. Sleeps are short and the
+ * rate is re-read after each one, which lets a rate change take effect on callers already waiting.
+ */
+class TokenBucket {
+
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate tokens per second, or zero for no limit
+     */
+    synchronized void setRate(long rate) {
+        refill();
+        this.rate = Math.max(0, rate);
+        tokens = Math.min(tokens, this.rate);
+    }
+
+    synchronized boolean isLimited() {
+        return rate > 0;
+    }
+
+    void acquire(long amount) throws InterruptedIOException {
+        synchronized (this) {
+            if (rate == 0) {
+                return;
+            }
+            refill();
+            tokens -= amount;
+        }
+
+        while (true) {
+            long sleepNanos;
+            synchronized (this) {
+                if (rate == 0) {
+                    return;
+                }
+                refill();
+                if (tokens >= 0) {
+                    return;
+                }
+                sleepNanos = Math.min(MAX_SLEEP_NANOS, (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate));
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(1, sleepNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,146 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a remote directory tree with several listings in flight, so the walk is bound by how many
+ * requests the NAS serves at once rather than by one round trip per directory. Each directory is
+ * a task on a fork-join pool with one worker per allowed listing; subdirectories are pushed onto
+ * the worker's own deque, so the walk stays roughly depth first and idle workers steal whole subtrees.
+ * <p>
+ * A directory is only listed once its parent's visit has handed it to {@code descend}, but idle
+ * workers steal it at once, so its visit may start before the parent's visit has returned.
+ * Siblings and unrelated subtrees are visited concurrently too, so visitors must be thread safe
+ * and must do whatever a child relies on before descending into it.
+ */
+public class TreeWalker {
+
+    /**
+     * Handles one directory's listing and hands the subdirectories to walk to {@code descend},
+     * each with the state its own visit needs.
+     */
+    @FunctionalInterface
+    public interface Visitor<T> {
+        void visit(String path, T state, List<FileInfo> entries, Descend<T> descend) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Descend<T> {
+        void into(String path, T state);
+    }
+
+    /**
+     * Produces the entries of one directory.
+     */
+    @FunctionalInterface
+    public interface Lister {
+        List<FileInfo> list(String path) throws IOException;
+    }
+
+    private final Lister lister;
+    private final int maxListings;
+
+    public TreeWalker(NetworkFileService networkService, int maxListings) {
+        this(networkService::listFiles, maxListings);
+    }
+
+    public TreeWalker(Lister lister, int maxListings) {
+        this.lister = lister;
+        this.maxListings = Math.max(1, maxListings);
+    }
+
+    /**
+     * Visits every directory under {@code rootPath}, including the root, and returns once all
+     * visits are done. The first failure stops the walk and is rethrown once the visits still
+     * running have returned.
+     */
+    public <T> void walk(String rootPath, T rootState, Visitor<T> visitor) throws IOException {
+        walk(Map.of(rootPath, rootState), visitor);
+    }
+
+    /**
+     * Like {@link #walk(String, Object, Visitor)} for several roots at once, all sharing the same
+     * listings in flight.
+     */
+    public <T> void walk(Map<String, T> roots, Visitor<T> visitor) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(maxListings, namedWorkers(), null, false);
+        Walk<T> walk = new Walk<>(pool, visitor);
+
+        try {
+            // Held until every root is queued, so a fast first root cannot end the walk
+            walk.pending.incrementAndGet();
+            roots.forEach(walk::descend);
+            walk.finished();
+            walk.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Directory walk interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Directory walk failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // Visits still running after a failure must not outlive the walk
+            pool.shutdownNow();
+            CopyEngine.awaitTermination(pool);
+        }
+    }
+
+    private final class Walk<T> {
+        private final ForkJoinPool pool;
+        private final Visitor<T> visitor;
+        private final AtomicLong pending = new AtomicLong();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Walk(ForkJoinPool pool, Visitor<T> visitor) {
+            this.pool = pool;
+            this.visitor = visitor;
+        }
+
+        void descend(String path, T state) {
+            pending.incrementAndGet();
+            // From a worker of this pool, execute pushes onto that worker's own deque
+            pool.execute(() -> visit(path, state));
+        }
+
+        private void visit(String path, T state) {
+            try {
+                if (!done.isDone()) {
+                    List<FileInfo> entries = lister.list(path);
+                    visitor.visit(path, state, entries, this::descend);
+                }
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+            } finally {
+                finished();
+            }
+        }
+
+        void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory namedWorkers() {
+        AtomicInteger counter = new AtomicInteger();
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("backup-walk-" + counter.incrementAndGet());
+            return thread;
+        };
+    }
+}
@@ -3,12 +3,16 @@ package com.backup.ui;
 
 import com.backup.model.*;
 import com.backup.service.*;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.ListChangeListener;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
+import javafx.util.Duration;
 import javafx.util.StringConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,11 +26,13 @@ import java.util.Optional;
 
 import static com.backup.Utils.formatBytes;
 import static com.backup.Utils.formatDateTime;
+import static com.backup.Utils.formatDuration;
 
 public class MainController {
 
     private static final Logger logger = LoggerFactory.getLogger(MainController.class);
     private static final DateTimeFormatter DATETIME_FORMATTER = formatDateTime();
+    private static final Duration CONFIG_CHECK_INTERVAL = Duration.seconds(5);
 
     // SMB Source Configuration
     @FXML
@@ -81,6 +87,8 @@ public class MainController {
     private TableColumn<History, String> sizeColumn;
     @FXML
     private TableColumn<History, String> statusColumn;
+    @FXML
+    private TableColumn<History, String> durationColumn;
 
     private ConfigurationService configService;
     private SmbDriveService smbDriveService;
@@ -89,6 +97,8 @@ public class MainController {
 
     private String selectedSmbPath = "";
     private Path selectedUsbPath;
+    // Applies rate limits edited in the configuration file while a backup runs
+    private Timeline rateLimitWatch;
 
     public void initialize(ConfigurationService configService,
                            SmbDriveService smbDriveService,
@@ -247,6 +257,12 @@ public class MainController {
         sizeColumn.setCellValueFactory(cellData ->
                 new SimpleStringProperty(formatBytes(cellData.getValue().getTotalSize())));
 
+        // Runs recorded before durations were kept show none
+        durationColumn.setCellValueFactory(cellData -> new SimpleStringProperty(
+                cellData.getValue().getDurationMillis() > 0
+                        ? formatDuration(cellData.getValue().getDurationMillis() / 1000)
+                        : "--"));
+
         statusColumn.setCellValueFactory(cellData ->
                 new SimpleStringProperty(cellData.getValue().isSuccessful() ? "Success" : "Failed"));
     }
@@ -413,8 +429,12 @@ public class MainController {
             return;
         }
 
-        // Create a minimal configuration for backup
-        Configuration config = new Configuration();
+        // The saved options, backing up the selection on the mounted network drive rather than a share
+        Configuration config = configService.copyConfiguration();
+        config.setNasHost(null);
+        config.setNasBackupPath(selectedSmbPath);
+        // Runs are recorded into, and durations predicted from, the saved history
+        config.setHistories(configService.getConfiguration().getHistories());
         
         startBackupButton.setDisable(true);
         cancelBackupButton.setDisable(false);
@@ -426,12 +446,15 @@ public class MainController {
                 progress -> {
                     double fileProgress = progress.getFileProgress();
                     progressBar.setProgress(fileProgress);
-                    progressLabel.setText(String.format("Files: %d/%d (%s/%s)",
+                    String eta = progress.etaSeconds >= 0 ? formatDuration(progress.etaSeconds) : "--";
+                    progressLabel.setText(String.format("Files: %d/%d (%s/%s) - %s/s, %.0f files/s, ETA %s",
                             progress.filesProcessed, progress.totalFiles,
-                            formatBytes(progress.bytesProcessed), formatBytes(progress.totalBytes)));
+                            formatBytes(progress.bytesProcessed), formatBytes(progress.totalBytes),
+                            formatBytes((long) progress.bytesPerSecond), progress.filesPerSecond, eta));
                 },
                 status -> statusLabel.setText(status),
                 success -> {
+                    stopRateLimitWatch();
                     startBackupButton.setDisable(false);
                     cancelBackupButton.setDisable(true);
 
@@ -446,11 +469,33 @@ public class MainController {
                     historyTable.getItems().setAll(config.getHistories());
                     saveConfiguration();
                 });
+        startRateLimitWatch();
+    }
+
+    private void startRateLimitWatch() {
+        stopRateLimitWatch();
+        rateLimitWatch = new Timeline(new KeyFrame(CONFIG_CHECK_INTERVAL, event -> {
+            if (configService.reloadIfChanged()) {
+                Configuration saved = configService.getConfiguration();
+                backupService.updateRateLimits(saved.getRateLimits(), saved.getRateProfiles());
+                statusLabel.setText("Rate limits updated");
+            }
+        }));
+        rateLimitWatch.setCycleCount(Animation.INDEFINITE);
+        rateLimitWatch.play();
+    }
+
+    private void stopRateLimitWatch() {
+        if (rateLimitWatch != null) {
+            rateLimitWatch.stop();
+            rateLimitWatch = null;
+        }
     }
 
     @FXML
     private void cancelBackup() {
         backupService.cancelBackup();
+        stopRateLimitWatch();
 
         startBackupButton.setDisable(false);
         cancelBackupButton.setDisable(true);
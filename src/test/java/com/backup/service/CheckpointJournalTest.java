@@ -0,0 +1,95 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckpointJournalTest {
+
+    private static final String SOURCE = "smb://nas/share/photos/";
+
+    @TempDir
+    Path root;
+
+    @Test
+    void replaysCompletedAndPartialFiles() throws IOException {
+        FileInfo done = file(100, 1);
+        FileInfo large = file(10_000, 2);
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            journal.recordCompleted("done.jpg", done);
+            CheckpointJournal.Checkpoint checkpoint = journal.checkpoint("large.mov", large);
+            checkpoint.advance(4096);
+            checkpoint.advance(8192);
+        }
+
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            assertTrue(journal.isCompleted("done.jpg", done));
+            assertFalse(journal.isCompleted("done.jpg", file(100, 3)));
+            assertTrue(journal.isPartial("large.mov"));
+            assertEquals(8192, journal.checkpoint("large.mov", large).getResumeOffset());
+            // A source changed since the checkpoint starts over
+            assertEquals(0, journal.checkpoint("large.mov", file(10_000, 5)).getResumeOffset());
+        }
+    }
+
+    @Test
+    void completingAPartialFileSupersedesItsCheckpoints() throws IOException {
+        FileInfo large = file(10_000, 2);
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            journal.checkpoint("large.mov", large).advance(4096);
+            journal.recordCompleted("large.mov", large);
+        }
+
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            assertTrue(journal.isCompleted("large.mov", large));
+            assertFalse(journal.isPartial("large.mov"));
+        }
+    }
+
+    @Test
+    void ignoresATornRecordAndAJournalOfAnotherSource() throws IOException {
+        FileInfo done = file(100, 1);
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            journal.recordCompleted("done.jpg", done);
+        }
+        Files.write(root.resolve(CheckpointJournal.JOURNAL_FILE_NAME), new byte[]{'C', 0, 8, 'x'},
+                StandardOpenOption.APPEND);
+
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            assertTrue(journal.isCompleted("done.jpg", done));
+            journal.recordCompleted("next.jpg", done);
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            assertTrue(journal.isCompleted("next.jpg", done));
+        }
+
+        try (CheckpointJournal journal = new CheckpointJournal(root, "smb://nas/share/music/")) {
+            assertFalse(journal.isCompleted("done.jpg", done));
+        }
+    }
+
+    @Test
+    void finishRemovesTheJournal() throws IOException {
+        try (CheckpointJournal journal = new CheckpointJournal(root, SOURCE)) {
+            journal.recordCompleted("done.jpg", file(100, 1));
+            journal.finish();
+        }
+        assertFalse(Files.exists(root.resolve(CheckpointJournal.JOURNAL_FILE_NAME)));
+    }
+
+    private static FileInfo file(long size, long lastModified) {
+        FileInfo file = new FileInfo();
+        file.setSize(size);
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
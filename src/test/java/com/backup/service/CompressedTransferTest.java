@@ -0,0 +1,92 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompressedTransferTest {
+
+    private static final int BUFFER_SIZE = AppConstants.MIN_BUFFER_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService readExecutor = Executors.newCachedThreadPool();
+    private final ExecutorService compressExecutor = Executors.newFixedThreadPool(2);
+    private final CompressedTransfer.Deflaters deflaters = new CompressedTransfer.Deflaters(3);
+    private final BufferPool pool = new BufferPool(8, BUFFER_SIZE);
+
+    @AfterEach
+    void shutdown() {
+        readExecutor.shutdownNow();
+        compressExecutor.shutdownNow();
+        CopyEngine.awaitTermination(compressExecutor);
+        deflaters.close();
+    }
+
+    @Test
+    void compressedOutputGunzipsToTheSource() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < BUFFER_SIZE * 20; i++) {
+            text.append("line ").append(i).append(" of a log file that compresses well\n");
+        }
+        byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+        Path output = directory.resolve("output.gz");
+        ContentChecksum checksum = new ContentChecksum(false);
+
+        assertTrue(transfer(content, output, checksum));
+
+        assertTrue(Files.size(output) < content.length / 2);
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(output))) {
+            assertArrayEquals(content, input.readAllBytes());
+        }
+        ContentChecksum expected = new ContentChecksum(false);
+        expected.update(ByteBuffer.wrap(content));
+        assertEquals(expected.getCrc32c(), checksum.getCrc32c());
+    }
+
+    @Test
+    void incompressibleSourceIsWrittenUnchanged() throws IOException {
+        byte[] content = new byte[BUFFER_SIZE * 5 + 17];
+        new Random(3).nextBytes(content);
+        Path output = directory.resolve("output");
+
+        assertFalse(transfer(content, output, null));
+        assertArrayEquals(content, Files.readAllBytes(output));
+    }
+
+    @Test
+    void emptySourceStaysEmpty() throws IOException {
+        Path output = directory.resolve("output");
+
+        assertFalse(transfer(new byte[0], output, null));
+        assertEquals(0, Files.size(output));
+    }
+
+    private boolean transfer(byte[] content, Path output, ContentChecksum checksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            return new CompressedTransfer(pool, readExecutor, compressExecutor, new RateGovernor(), deflaters, 4)
+                    .apply(new ByteArrayInputStream(content), channel, checksum);
+        }
+    }
+}
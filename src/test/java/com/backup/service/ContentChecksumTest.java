@@ -0,0 +1,45 @@
+package com.backup.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ContentChecksumTest {
+
+    @Test
+    void combinesTheCrcsOfPieces() {
+        byte[] content = new byte[100_000];
+        new Random(2).nextBytes(content);
+
+        for (int split : new int[]{0, 1, 4096, 65_537, content.length}) {
+            long first = crc32c(content, 0, split);
+            long second = crc32c(content, split, content.length - split);
+            assertEquals(crc32c(content, 0, content.length),
+                    ContentChecksum.combineCrc32c(first, second, content.length - split), "split at " + split);
+        }
+    }
+
+    @Test
+    void resetStartsOver() {
+        ContentChecksum checksum = new ContentChecksum(true);
+        checksum.update(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        checksum.getSha256();
+        checksum.reset();
+        checksum.update(ByteBuffer.wrap(new byte[]{4, 5}));
+
+        ContentChecksum fresh = new ContentChecksum(true);
+        fresh.update(ByteBuffer.wrap(new byte[]{4, 5}));
+        assertEquals(fresh.getCrc32c(), checksum.getCrc32c());
+        assertEquals(ByteBuffer.wrap(fresh.getSha256()), ByteBuffer.wrap(checksum.getSha256()));
+    }
+
+    private static long crc32c(byte[] content, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(content, offset, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,82 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DeltaTransferTest {
+
+    private static final int BLOCK_SIZE = AppConstants.MIN_BUFFER_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BufferPool pool = new BufferPool(4, BLOCK_SIZE);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void rewritesOnlyTheChangedBlocks() throws IOException {
+        byte[] previous = new byte[BLOCK_SIZE * 8];
+        new Random(4).nextBytes(previous);
+        byte[] current = previous.clone();
+        current[BLOCK_SIZE * 2 + 10]++;
+        current[BLOCK_SIZE * 5]++;
+        Path destination = directory.resolve("file");
+        Files.write(destination, previous);
+
+        assertEquals(2L * BLOCK_SIZE, apply(current, destination));
+        assertArrayEquals(current, Files.readAllBytes(destination));
+    }
+
+    @Test
+    void growsAndShrinksTheDestination() throws IOException {
+        byte[] previous = new byte[BLOCK_SIZE * 4];
+        new Random(5).nextBytes(previous);
+        Path destination = directory.resolve("file");
+
+        byte[] grown = Arrays.copyOf(previous, BLOCK_SIZE * 5 + 100);
+        Files.write(destination, previous);
+        assertEquals(BLOCK_SIZE + 100, apply(grown, destination));
+        assertArrayEquals(grown, Files.readAllBytes(destination));
+
+        byte[] shrunk = Arrays.copyOf(previous, BLOCK_SIZE * 2 + 1);
+        assertEquals(1, apply(shrunk, destination));
+        assertArrayEquals(shrunk, Files.readAllBytes(destination));
+    }
+
+    @Test
+    void returnsTheHashBufferToThePool() throws Exception {
+        Path destination = directory.resolve("file");
+        Files.write(destination, new byte[BLOCK_SIZE * 3]);
+
+        for (int i = 0; i < 10; i++) {
+            apply(new byte[BLOCK_SIZE * 3], destination);
+        }
+        for (int i = 0; i < 4; i++) {
+            pool.acquire();
+        }
+    }
+
+    private long apply(byte[] source, Path destination) throws IOException {
+        return new DeltaTransfer(pool, executor, new RateGovernor(), 2)
+                .apply(new ByteArrayInputStream(source), source.length, destination, null);
+    }
+}
@@ -0,0 +1,75 @@
+package com.backup.service;
+
+import com.backup.model.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MirrorCleanerTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void removesOnlyEntriesWithoutASourceCounterpart() throws IOException {
+        for (String name : List.of("kept.txt", ".kept.txt.partial", "packed.txt.gz", "Renamed.TXT",
+                "stale.txt", ".backup-journal")) {
+            Files.writeString(root.resolve(name), name);
+        }
+        Files.createDirectories(root.resolve("photos"));
+        Files.createDirectories(root.resolve("old").resolve("nested"));
+        Files.writeString(root.resolve("old").resolve("nested").resolve("file"), "x");
+
+        MirrorCleaner cleaner = new MirrorCleaner(root, -1, null);
+        cleaner.reconcile(root, List.of(file("kept.txt"), file("packed.txt"), file("renamed.txt"),
+                directory("photos/")));
+        cleaner.flush();
+
+        assertEquals(Set.of("kept.txt", ".kept.txt.partial", "packed.txt.gz", "Renamed.TXT", ".backup-journal",
+                "photos"), names(root));
+    }
+
+    @Test
+    void movesRemovedEntriesToTheTrash() throws IOException {
+        Files.createDirectories(root.resolve("docs"));
+        Files.writeString(root.resolve("docs").resolve("gone.txt"), "gone");
+
+        MirrorCleaner cleaner = new MirrorCleaner(root, 30, null);
+        cleaner.reconcile(root.resolve("docs"), List.of());
+        cleaner.flush();
+
+        assertTrue(names(root.resolve("docs")).isEmpty());
+        try (Stream<Path> runs = Files.list(root.resolve(MirrorCleaner.TRASH_DIR_NAME))) {
+            Path run = runs.findFirst().orElseThrow();
+            assertEquals("gone", Files.readString(run.resolve("docs").resolve("gone.txt")));
+        }
+    }
+
+    private static Set<String> names(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.map(entry -> entry.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+
+    private static FileInfo file(String name) {
+        FileInfo file = new FileInfo();
+        file.setName(name);
+        return file;
+    }
+
+    private static FileInfo directory(String name) {
+        FileInfo directory = file(name);
+        directory.setDirectory(true);
+        return directory;
+    }
+}
@@ -0,0 +1,98 @@
+package com.backup.service;
+
+import com.backup.model.DurabilityPolicy;
+import com.backup.model.FileInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackStoreTest {
+
+    private static final long MAX_PACK_SIZE = 1000;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void reloadsTheIndexWrittenByAPreviousRun() throws IOException {
+        try (PackStore store = open()) {
+            store.store("a.txt", file(100, 10), ByteBuffer.allocate(100));
+            store.store("dir/b.txt", file(50, 20), ByteBuffer.allocate(50));
+            store.store("a.txt", file(120, 30), ByteBuffer.allocate(120));
+        }
+
+        try (PackStore store = open()) {
+            assertTrue(store.isCurrent("a.txt", file(120, 30)));
+            assertFalse(store.isCurrent("a.txt", file(100, 10)));
+            assertTrue(store.isCurrent("dir/b.txt", file(50, 20)));
+            assertFalse(store.isCurrent("dir/b.txt", file(50, 21)));
+            assertFalse(store.isCurrent("c.txt", file(0, 0)));
+        }
+    }
+
+    @Test
+    void dropsARecordCutShortByACrash() throws IOException {
+        try (PackStore store = open()) {
+            store.store("a.txt", file(10, 1), ByteBuffer.allocate(10));
+        }
+        Path index = root.resolve(PackStore.PACK_DIR_NAME).resolve("index.dat");
+        long length = Files.size(index);
+        Files.write(index, new byte[]{0, 9, 'b'}, StandardOpenOption.APPEND);
+
+        try (PackStore store = open()) {
+            assertEquals(length, Files.size(index));
+            store.store("b.txt", file(10, 2), ByteBuffer.allocate(10));
+        }
+
+        try (PackStore store = open()) {
+            assertTrue(store.isCurrent("a.txt", file(10, 1)));
+            assertTrue(store.isCurrent("b.txt", file(10, 2)));
+        }
+    }
+
+    @Test
+    void compactsPacksMostlyHoldingSupersededFiles() throws IOException {
+        for (int run = 0; run < 3; run++) {
+            try (PackStore store = open()) {
+                for (int i = 0; i < 20; i++) {
+                    store.store("file" + i, file(100, run), ByteBuffer.allocate(100));
+                }
+            }
+        }
+        assertEquals(6, packCount());
+
+        try (PackStore store = open()) {
+            assertEquals(2, packCount());
+            for (int i = 0; i < 20; i++) {
+                assertTrue(store.isCurrent("file" + i, file(100, 2)));
+            }
+        }
+    }
+
+    private PackStore open() throws IOException {
+        return new PackStore(root, MAX_PACK_SIZE, DurabilityPolicy.NONE);
+    }
+
+    private long packCount() throws IOException {
+        try (Stream<Path> files = Files.list(root.resolve(PackStore.PACK_DIR_NAME))) {
+            return files.filter(path -> path.getFileName().toString().startsWith("pack-")).count();
+        }
+    }
+
+    private static FileInfo file(long size, long lastModified) {
+        FileInfo file = new FileInfo();
+        file.setSize(size);
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
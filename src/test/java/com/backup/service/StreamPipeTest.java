@@ -0,0 +1,85 @@
+package com.backup.service;
+
+import com.backup.constants.AppConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StreamPipeTest {
+
+    private static final int BUFFER_SIZE = AppConstants.MIN_BUFFER_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BufferPool pool = new BufferPool(4, BUFFER_SIZE);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void copiesEveryByteAndChecksumsIt() throws IOException {
+        byte[] content = new byte[BUFFER_SIZE * 10 + 123];
+        new Random(1).nextBytes(content);
+        Path output = directory.resolve("output");
+        ContentChecksum checksum = new ContentChecksum(true);
+
+        long written;
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            written = new StreamPipe(pool, 2, new RateGovernor())
+                    .transfer(new ByteArrayInputStream(content), channel, executor, checksum);
+        }
+
+        assertEquals(content.length, written);
+        assertArrayEquals(content, Files.readAllBytes(output));
+        CRC32C expected = new CRC32C();
+        expected.update(content);
+        assertEquals(expected.getValue(), checksum.getCrc32c());
+        assertArrayEquals(FileCopier.sha256().digest(content), checksum.getSha256());
+    }
+
+    @Test
+    void returnsEveryBufferWhenTheSourceFails() throws Exception {
+        InputStream failing = new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (++read > BUFFER_SIZE * 3) {
+                    throw new IOException("Connection reset");
+                }
+                return 7;
+            }
+        };
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("output"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertThrows(IOException.class,
+                    () -> new StreamPipe(pool, 2, new RateGovernor()).transfer(failing, channel, executor));
+        }
+
+        // The whole pool can be taken again
+        for (int i = 0; i < 4; i++) {
+            pool.acquire();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.backup.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void unlimitedBucketNeverWaits() {
+        TokenBucket bucket = new TokenBucket();
+
+        assertFalse(bucket.isLimited());
+        assertTimeoutPreemptively(Duration.ofMillis(500), () -> bucket.acquire(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    void holdsCallersToTheRate() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(10_000);
+
+        long start = System.nanoTime();
+        bucket.acquire(5_000);
+        bucket.acquire(5_000);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Starts empty, so ten thousand tokens take about a second
+        assertTrue(elapsedMillis >= 800, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void liftingTheLimitReleasesWaitingCallers() throws Exception {
+        TokenBucket bucket = new TokenBucket();
+        bucket.setRate(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                bucket.acquire(1_000_000);
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        Thread.sleep(50);
+        bucket.setRate(0);
+        waiter.join(1_000);
+        assertFalse(waiter.isAlive());
+    }
+}